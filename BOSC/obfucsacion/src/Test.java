@@ -1,23 +1,19 @@
+import obfuscationmethods.ObfuscationPipeline;
+import obfuscationmethods.PassOptions;
 import utils.ArrayToCodeString;
 import utils.ByteCodeOutput;
+import utils.HexCodec;
+import utils.RunReport;
 
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
-import static obfuscationmethods.FalseBranchConfuse.*;
-import static obfuscationmethods.FlowerInstructionConfuse.InsertFlowerInstructions;
-import static obfuscationmethods.FlowerInstructionConfuse.constructFlowerInstructions;
-import static obfuscationmethods.IncompleteInstructionsConfuse.InsertIncompleteInstructions;
-import static obfuscationmethods.InstructionOrderRearrangeConfuse.OrderRearrange;
-import static obfuscationmethods.InstructionOrderRearrangeConfuse.constructIndependentInstruction;
 import static utils.ByteCodeCleanAndRecovry.byteCodeClean;
 import static utils.ByteCodeCleanAndRecovry.byteCodeRecovery;
 import static utils.ByteCodeInput.readFileContent;
 import static utils.CodeStingToArray.ToArray;
-import static utils.FindJumpAndChangeBValue.findDupicateInArray;
-import static utils.InsertIndex.insertIndex;
 
 
 public class Test {
@@ -55,57 +51,27 @@ public class Test {
         long end = System.currentTimeMillis();
         System.out.println("preprocessing time："+ (end - start) + "ms");
 
-        //4.Incomplete Instruction Obfuscation
-        System.out.println("Incomplete instruction obfuscation in progress……");
-        long s1 = System.currentTimeMillis();
-        String[] bytecode1 = InsertIncompleteInstructions(cleanedBytecode);
-        long e1 = System.currentTimeMillis();
-        System.out.println("Completed incomplete instruction obfuscation technique！"
-                + "execution time："+ (e1 - s1) + "ms");
-
-        //5. False branch obfuscation
-        //5.1 Determine if there is a jump
-        System.out.println("Fake branch obfuscation in progress……");
-        long s22 = System.currentTimeMillis();
-        if (isExistJump(bytecode1)==-1){
-            //5.2 If not, construct true and false instructions
-            System.out.println("Without the jump instruction, the true and false paths will be constructed.");
-            InsertJumpi(bytecode1, insertIndex(bytecode1));
-        }else {
-            System.out.println("There is a jump instruction, change it to a true and false " +
-                    "instruction with a conditional jump");
-            //5.2 If there is, it is changed to a true and false instruction with a conditional jump
-            List<Integer> dupicateInArray1 = findDupicateInArray(bytecode1, 0);
-            if(dupicateInArray1.size() == 0){
-                System.out.println("It should not be inserted here and will be skipped. . .");
-            }else {
-                changeToJumpi(bytecode1, dupicateInArray1.get(0));
-            }
-
+        //3.1-6 Obfuscation passes: dispatcher rewrite, incomplete instructions, false branch, flower
+        //instructions, instruction order rearrangement. Each pass is validated, an invalid pass is rolled
+        //back and retried with another seed, a pass that keeps failing is skipped
+        System.out.println("Obfuscation in progress……");
+        long seed = System.nanoTime();
+        ObfuscationPipeline.Result result = ObfuscationPipeline.standard(new PassOptions(), seed)
+                .run(HexCodec.toBytes(cleanedBytecode));
+        for (ObfuscationPipeline.PassResult pass : result.passes) {
+            System.out.println("Completed " + pass.name + " obfuscation" + (pass.applied ? "" : " (skipped: " + pass.problems + ")")
+                    + ", attempts：" + pass.attempts + ", execution time：" + pass.nanos / 1000000 + "ms");
         }
-        long e2 = System.currentTimeMillis();
-        System.out.println("Completed fake branch obfuscation technique."+ "execution time："+ (e2 - s22) + "ms");
-
-        //5.flower instruction obfuscation technique
-        System.out.println("Flower instruction obfuscation technology in progress...");
-        long s3 = System.currentTimeMillis();
-        String flowerInstruction = constructFlowerInstructions();
-        String[] bytecode2 = InsertFlowerInstructions(bytecode1, flowerInstruction);
-        long e3 = System.currentTimeMillis();
-        System.out.println("Flower instruction obfuscation completed."+ "execution time："+ (e3 - s3) + "ms");
-
-        //6.Instruction Order Rearrangement Obfuscation Technology
-        System.out.println("Instruction order reordering obfuscation in progress...");
-        long s4 = System.currentTimeMillis();
-        String[] IndependentInstruction = constructIndependentInstruction();
-        String[] bytecode3 = OrderRearrange(bytecode2, IndependentInstruction);
-        long e4 = System.currentTimeMillis();
-        System.out.println("Completed instruction order reordering obfuscation technology..."
-                + "execution time："+ (e3 - s3) + "ms");
+        String[] bytecode3 = HexCodec.toStringArray(result.code);
+        RunReport report = new RunReport(filename, seed);
+        report.stage("preprocess", (end - start) * 1000000);
+        report.pipeline(HexCodec.toBytes(cleanedBytecode), result);
 
         //7.Obfuscation complete, bytecode recovery
         System.out.println("Bytecode recovery in progress……");
+        long s5 = System.nanoTime();
         String[] bytecode4 = byteCodeRecovery(bytecode, bytecode3);
+        report.stage("recovery", System.nanoTime() - s5);
         System.out.println("Bytecode recovery completed……");
 
         //----------------------------------------------------------------------------
@@ -124,6 +90,10 @@ public class Test {
             // create file
             String fileName = dirName + '/'+ s+"runtime"+"obfuscated"+filename;
             ByteCodeOutput.createFile(fileName,runtimeObfuscatedBytecode);
+            // obfuscated pc -> original pc of the runtime bytecode, see utils.OffsetMap
+            ByteCodeOutput.createBinaryFile(fileName + ".map", result.offsets.toBytes());
+            // sizes, gas, validation and stage times, see utils.RunReport
+            ByteCodeOutput.createFile(fileName + ".report.json", report.toJson().toStringPretty());
         }
         //----------------------------------------------------------------------------
 
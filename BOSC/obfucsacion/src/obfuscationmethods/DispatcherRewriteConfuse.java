@@ -0,0 +1,423 @@
+package obfuscationmethods;
+
+import utils.Checks;
+import utils.ControlFlowGraph;
+import utils.DispatcherAnalyzer;
+import utils.EditBuffer;
+import utils.HexCodec;
+import utils.Opcodes;
+import utils.SnippetTemplate;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Dispatcher rewrite obfuscation: a binary search tree over the selectors is put in front of
+ * Solidity's linear selector chain. A call reaches its function after O(log n) comparisons instead
+ * of O(n), so the pass lowers the average dispatch gas while the dispatcher no longer looks like the
+ * compiler's. The comparisons of the original chain are deleted, its blocks fall through to the
+ * compiler's miss code, so fallback and receive behave exactly as before. A chain of another shape
+ * stays behind the tree as the miss path.
+ */
+public class DispatcherRewriteConfuse {
+
+    //below this many selectors the tree does not save gas
+    public static final int MIN_SELECTORS = 4;
+
+    //DUP1 PUSH4 EQ/GT/LT PUSH2 JUMPI
+    private static final int COMPARE_SIZE = 11;
+    //PUSH2 JUMP
+    private static final int MISS_SIZE = 4;
+    //longest dispatch path DispatchGas follows
+    private static final int MAX_STEPS = 4096;
+
+    /**
+     * The pass of ObfuscationPipeline, its gas delta is the one of DispatchGasDelta
+     */
+    public static final ObfuscationPipeline.Pass PASS = new ObfuscationPipeline.Pass() {
+        @Override
+        public void run(EditBuffer buf, PassOptions options) {
+            RewriteDispatcher(buf, options);
+        }
+
+        @Override
+        public long gasDelta(EditBuffer buf, EditBuffer.Layout layout) {
+            return DispatchGasDelta(buf, layout);
+        }
+    };
+
+    public static String[] RewriteDispatcher(String[] bytecode){
+        EditBuffer buf = new EditBuffer(HexCodec.toBytes(bytecode));
+        RewriteDispatcher(buf, new PassOptions());
+        return HexCodec.toStringArray(buf.apply());
+    }
+
+    /**
+     * Stamp the selector search tree where the selector is on top of the stack
+     * @return whether the dispatcher was rewritten
+     */
+    public static boolean RewriteDispatcher(EditBuffer buf, PassOptions options){
+        byte[] code = buf.original();
+        DispatcherAnalyzer analyzer = new DispatcherAnalyzer(code);
+        ControlFlowGraph cfg = analyzer.cfg();
+        //comparisons elsewhere in the code (e.g. of an embedded contract) are not part of the dispatcher
+        List<DispatcherAnalyzer.Entry> entries = new ArrayList<>();
+        Map<String, Integer> targets = new LinkedHashMap<>();
+        for (DispatcherAnalyzer.Entry entry : analyzer.entries()) {
+            if (analyzer.dispatcherBlocks()[cfg.blockAt(entry.pushOffset).index]){
+                entries.add(entry);
+                targets.putIfAbsent(entry.selector, entry.target);
+            }
+        }
+        if (targets.size() < MIN_SELECTORS){
+            return false;
+        }
+        int[] chain = chain(code, cfg, analyzer.dispatcherBlocks(), entries);
+        int index = chain != null ? chain[0] : selectorReadyOffset(code, cfg, entries.get(0));
+        if (!options.isEligible(code, index)){
+            return false;
+        }
+        String[] selectors = targets.keySet().toArray(new String[0]);
+        Arrays.sort(selectors);
+
+        StringBuilder pattern = new StringBuilder();
+        List<Long> values = new ArrayList<>();
+        int size = treeSize(selectors.length);
+        emit(pattern, values, selectors, 0, selectors.length, 0, size, targets, options.getRandom());
+        //miss label: the emptied chain, or the original one, leads to the miss code
+        pattern.append("5b");
+        SnippetTemplate tree = SnippetTemplate.compile("dispatcher.tree", pattern.toString());
+        long[] slotValues = new long[values.size()];
+        for (int i = 0; i < slotValues.length; i++) {
+            slotValues[i] = values.get(i);
+        }
+        buf.insert(index, tree, slotValues);
+        for (int i = 1; chain != null && i < chain.length; i++) {
+            buf.delete(chain[i]);
+        }
+        return true;
+    }
+
+    /**
+     * Mean change of the dispatch gas over the selectors of the tree: the gas from where the tree
+     * was stamped to the function the selector reaches, before and after the rewrite. Selectors
+     * whose dispatch does not end at the same instruction in both are left out. 0 without a tree.
+     */
+    public static long DispatchGasDelta(EditBuffer buf, EditBuffer.Layout layout){
+        List<EditBuffer.Edit> edits = buf.edits();
+        for (int e = 0; e < edits.size(); e++) {
+            if (!edits.get(e).isInsert()){
+                continue;
+            }
+            int start = layout.editStarts[e];
+            int end = start + edits.get(e).template.length();
+            long sum = 0;
+            int n = 0;
+            for (DispatcherAnalyzer.Entry entry : DispatcherAnalyzer.findEntries(layout.code)) {
+                if (entry.pushOffset < start || entry.pushOffset >= end){
+                    continue;
+                }
+                long selector = Long.parseLong(entry.selector, 16);
+                long[] before = DispatchGas(buf.original(), edits.get(e).offset, selector);
+                long[] after = DispatchGas(layout.code, start, selector);
+                if (layout.newOffsets[(int) before[0]] == after[0]){
+                    sum += after[1] - before[1];
+                    n++;
+                }
+            }
+            return n == 0 ? 0 : Math.round((double) sum / n);
+        }
+        return 0;
+    }
+
+    /**
+     * Follow the selector comparisons from offset with the selector on top of the stack
+     * (JUMPDEST, DUP1, DUP2, PUSH1-4, EQ, GT, LT, JUMPI, JUMP)
+     * @return {offset of the first other instruction, static gas up to it}
+     */
+    static long[] DispatchGas(byte[] code, int offset, long selector){
+        Deque<Long> stack = new ArrayDeque<>();
+        stack.push(selector);
+        int pc = offset;
+        long gas = 0;
+        for (int step = 0; step < MAX_STEPS && pc < code.length; step++) {
+            int op = code[pc] & 0xFF;
+            int next = Opcodes.next(code, pc);
+            if (op == Opcodes.DUP1 && stack.size() >= 1 || op == Opcodes.DUP1 + 1 && stack.size() >= 2){
+                Long top = stack.pop();
+                Long copy = op == Opcodes.DUP1 ? top : stack.peek();
+                stack.push(top);
+                stack.push(copy);
+            }else if (op >= Opcodes.PUSH1 && op <= Opcodes.PUSH4){
+                stack.push(Opcodes.pushValue(code, pc));
+            }else if ((op == Opcodes.EQ || op == Opcodes.GT || op == Opcodes.LT) && stack.size() >= 2){
+                long a = stack.pop();
+                long b = stack.pop();
+                boolean holds = op == Opcodes.EQ ? a == b : op == Opcodes.GT ? a > b : a < b;
+                stack.push(holds ? 1L : 0L);
+            }else if (op == Opcodes.JUMPI && stack.size() >= 2){
+                long target = stack.pop();
+                if (stack.pop() != 0){
+                    next = (int) Math.min(target, code.length);
+                }
+            }else if (op == Opcodes.JUMP && stack.size() >= 1){
+                next = (int) Math.min(stack.pop(), code.length);
+            }else if (op != Opcodes.JUMPDEST){
+                break;
+            }
+            gas += Opcodes.baseGas(op);
+            pc = next;
+        }
+        return new long[]{Math.min(pc, code.length), gas};
+    }
+
+    /**
+     * The compiler's selector chain: every dispatcher block that ends in a selector comparison
+     * (DUP1 PUSH4 s EQ/GT/LT PUSHn t JUMPI, or PUSH4 s DUP2 EQ PUSHn t JUMPI) holds nothing else but a
+     * JUMPDEST, only the first one may compute the selector in front of its comparison. A comparison
+     * leaves the stack as it found it, without them the blocks fall through to the miss code.
+     * The chain qualifies when every EQ is an entry, every GT/LT split jumps to a block of the chain
+     * and all blocks the chain falls out of do the same (they are the miss code).
+     * @return the offset of the first comparison, then the offsets of all their instructions;
+     * null if the chain has another shape or an entry is not part of it
+     */
+    static int[] chain(byte[] code, ControlFlowGraph cfg, boolean[] dispatcherBlocks, List<DispatcherAnalyzer.Entry> entries){
+        boolean[] entryPushes = new boolean[code.length];
+        for (DispatcherAnalyzer.Entry entry : entries) {
+            entryPushes[entry.pushOffset] = true;
+        }
+        List<ControlFlowGraph.Block> blocks = cfg.blocks();
+        //block index -> offset of its comparison, -1 if it is no block of the chain
+        int[] starts = new int[blocks.size()];
+        Arrays.fill(starts, -1);
+        List<Integer> offsets = new ArrayList<>();
+        for (ControlFlowGraph.Block block : blocks) {
+            if (!dispatcherBlocks[block.index]){
+                continue;
+            }
+            List<Integer> pcs = new ArrayList<>();
+            for (int pc = block.start; pc < block.end; pc = Opcodes.next(code, pc)) {
+                pcs.add(pc);
+            }
+            int start = pcs.size() - 5;
+            if (start < 0 || !comparison(code, pcs.subList(start, pcs.size()))){
+                continue;
+            }
+            if (offsets.isEmpty()){
+                int ready = selectorReady(code, block.start, pcs.get(start));
+                if (ready >= 0 && ready != pcs.get(start)){
+                    return null;
+                }
+                offsets.add(pcs.get(start));
+            }else if (start > 1 || start == 1 && (code[block.start] & 0xFF) != Opcodes.JUMPDEST){
+                return null;
+            }
+            starts[block.index] = pcs.get(start);
+            offsets.addAll(pcs.subList(start, pcs.size()));
+        }
+        int miss = -1;
+        for (ControlFlowGraph.Block block : blocks) {
+            int start = starts[block.index];
+            if (start < 0){
+                continue;
+            }
+            int push = Opcodes.next(code, start);
+            if ((code[push] & 0xFF) == Opcodes.PUSH4 && (code[Opcodes.next(code, push)] & 0xFF) != Opcodes.EQ){
+                //GT/LT split
+                long target = Opcodes.pushValue(code, Opcodes.next(code, Opcodes.next(code, push)));
+                if (target >= code.length || cfg.blockAt((int) target).start != target
+                        || starts[cfg.blockAt((int) target).index] < 0){
+                    return null;
+                }
+            }else if (!entryPushes[(code[start] & 0xFF) == Opcodes.PUSH4 ? start : push]){
+                return null;
+            }
+            if (block.index + 1 == blocks.size()){
+                return null;
+            }
+            if (starts[block.index + 1] < 0){
+                int next = blocks.get(block.index + 1).start;
+                if (miss < 0){
+                    miss = next;
+                }else if (!sameCode(code, cfg, miss, next)){
+                    return null;
+                }
+            }
+        }
+        for (DispatcherAnalyzer.Entry entry : entries) {
+            if (starts[cfg.blockAt(entry.pushOffset).index] < 0){
+                return null;
+            }
+        }
+        int[] rs = new int[offsets.size()];
+        for (int i = 0; i < rs.length; i++) {
+            rs[i] = offsets.get(i);
+        }
+        return rs;
+    }
+
+    //whether the blocks at a and b end up running the same code: the same block behind
+    //JUMPDEST PUSH t JUMP trampolines, or the same instructions up to a halt
+    private static boolean sameCode(byte[] code, ControlFlowGraph cfg, int a, int b){
+        a = resolve(code, cfg, a);
+        b = resolve(code, cfg, b);
+        if (a == b){
+            return true;
+        }
+        ControlFlowGraph.Block blockA = cfg.blockAt(a);
+        ControlFlowGraph.Block blockB = cfg.blockAt(b);
+        int fromA = (code[a] & 0xFF) == Opcodes.JUMPDEST ? a + 1 : a;
+        int fromB = (code[b] & 0xFF) == Opcodes.JUMPDEST ? b + 1 : b;
+        int op = code[blockA.last] & 0xFF;
+        return (op == Opcodes.STOP || op == Opcodes.RETURN || op == Opcodes.REVERT || op == Opcodes.INVALID)
+                && Arrays.equals(Arrays.copyOfRange(code, fromA, blockA.end), Arrays.copyOfRange(code, fromB, blockB.end));
+    }
+
+    //final block behind JUMPDEST PUSH t JUMP trampolines
+    private static int resolve(byte[] code, ControlFlowGraph cfg, int offset){
+        for (int hops = 0; hops < 8; hops++) {
+            int push = (code[offset] & 0xFF) == Opcodes.JUMPDEST ? offset + 1 : offset;
+            if (push >= code.length || !Opcodes.isPush(code[push] & 0xFF) || Opcodes.immediateSize(code[push] & 0xFF) > 2){
+                break;
+            }
+            int jump = Opcodes.next(code, push);
+            long target = Opcodes.pushValue(code, push);
+            if (jump >= code.length || (code[jump] & 0xFF) != Opcodes.JUMP || target >= code.length
+                    || (code[(int) target] & 0xFF) != Opcodes.JUMPDEST){
+                break;
+            }
+            offset = (int) target;
+        }
+        return offset;
+    }
+
+    //five instructions comparing the selector on top of the stack without consuming it
+    private static boolean comparison(byte[] code, List<Integer> pcs){
+        int[] ops = new int[pcs.size()];
+        for (int i = 0; i < ops.length; i++) {
+            ops[i] = code[pcs.get(i)] & 0xFF;
+        }
+        boolean dupFirst = ops[0] == Opcodes.DUP1 && ops[1] == Opcodes.PUSH4
+                && (ops[2] == Opcodes.EQ || ops[2] == Opcodes.GT || ops[2] == Opcodes.LT);
+        boolean dupSecond = ops[0] == Opcodes.PUSH4 && ops[1] == Opcodes.DUP1 + 1 && ops[2] == Opcodes.EQ;
+        return (dupFirst || dupSecond) && (ops[3] == Opcodes.PUSH1 || ops[3] == Opcodes.PUSH2) && ops[4] == Opcodes.JUMPI;
+    }
+
+    /**
+     * Where the selector has just been computed (behind PUSH1 e0 SHR, or PUSH4 ffffffff AND for older
+     * compilers) in the block of the first comparison, otherwise the start of the first comparison
+     */
+    static int selectorReadyOffset(byte[] code, ControlFlowGraph cfg, DispatcherAnalyzer.Entry first){
+        ControlFlowGraph.Block block = cfg.blockAt(first.pushOffset);
+        int compareStart = first.pushOffset;
+        for (int pc = block.start; pc < first.pushOffset; pc = Opcodes.next(code, pc)) {
+            if (Opcodes.next(code, pc) == first.pushOffset && (code[pc] & 0xFF) == Opcodes.DUP1){
+                compareStart = pc;
+            }
+        }
+        int ready = selectorReady(code, block.start, first.pushOffset);
+        return ready >= 0 ? ready : compareStart;
+    }
+
+    //offset behind the last selector computation in [from, to), -1 if there is none
+    private static int selectorReady(byte[] code, int from, int to){
+        int ready = -1;
+        int previous = -1;
+        for (int pc = from; pc < to; pc = Opcodes.next(code, pc)) {
+            int op = code[pc] & 0xFF;
+            if (op == Opcodes.SHR && previous >= 0 && (code[previous] & 0xFF) == Opcodes.PUSH1
+                    && (code[previous + 1] & 0xFF) == 0xe0){
+                ready = Opcodes.next(code, pc);
+            }
+            if (op == Opcodes.AND && previous >= 0 && (code[previous] & 0xFF) == Opcodes.PUSH4
+                    && Opcodes.pushValue(code, previous) == 0xffffffffL){
+                ready = Opcodes.next(code, pc);
+            }
+            previous = pc;
+        }
+        return ready;
+    }
+
+    //bytes of the tree over n selectors, without the final miss label
+    static int treeSize(int n){
+        if (n <= 2){
+            return n * COMPARE_SIZE + MISS_SIZE;
+        }
+        int left = n / 2;
+        return COMPARE_SIZE + treeSize(n - left) + 1 + treeSize(left);
+    }
+
+    /**
+     * Emit the subtree over selectors[from, to) starting at snippet offset base, missLabel is the
+     * offset of the final JUMPDEST. The stack holds the selector on top and is left as it is.
+     */
+    private static void emit(StringBuilder pattern, List<Long> values, String[] selectors, int from, int to,
+                             int base, int missLabel, Map<String, Integer> targets, Random random){
+        int n = to - from;
+        if (n <= 2){
+            for (int i = from; i < to; i++) {
+                //DUP1 PUSH4 s EQ PUSH2 target JUMPI
+                pattern.append("80 63").append(selectors[i]).append(" 14 61{abs} 57 ");
+                values.add((long) targets.get(selectors[i]));
+            }
+            //PUSH2 miss JUMP
+            pattern.append("61{rel:").append(missLabel).append("} 56 ");
+            values.add(0L);
+            return;
+        }
+        int mid = from + (n - n / 2);
+        boolean upperFirst = random.nextBoolean();
+        //fall-through half is emitted first, the jumped-to half behind a JUMPDEST
+        int fallFrom = upperFirst ? mid : from;
+        int fallTo = upperFirst ? to : mid;
+        int jumpFrom = upperFirst ? from : mid;
+        int jumpTo = upperFirst ? mid : to;
+        int label = base + COMPARE_SIZE + treeSize(fallTo - fallFrom);
+        if (upperFirst){
+            //jump to the lower half if selector < first upper selector: DUP1 PUSH4 p GT
+            pattern.append("80 63").append(selectors[mid]).append(" 11 ");
+        }else {
+            //jump to the upper half if selector > last lower selector: DUP1 PUSH4 p LT
+            pattern.append("80 63").append(selectors[mid - 1]).append(" 10 ");
+        }
+        pattern.append("61{rel:").append(label).append("} 57 ");
+        values.add(0L);
+        emit(pattern, values, selectors, fallFrom, fallTo, base + COMPARE_SIZE, missLabel, targets, random);
+        pattern.append("5b ");
+        emit(pattern, values, selectors, jumpFrom, jumpTo, label + 1, missLabel, targets, random);
+    }
+
+    //tested
+    public static void main(String[] args) {
+        //PUSH1 0 CALLDATALOAD PUSH1 e0 SHR, four DUP1 PUSH4 s EQ PUSH1 t JUMPI, then PUSH1 0 DUP1 REVERT
+        StringBuilder sb = new StringBuilder("600035 60e01c");
+        String[] sels = {"a9059cbb", "70a08231", "095ea7b3", "18160ddd"};
+        int target = 6 + sels.length * 10 + 4;
+        for (int i = 0; i < sels.length; i++) {
+            sb.append("80 63").append(sels[i]).append(" 14 60").append(HexCodec.byteString(target + 2 * i)).append(" 57 ");
+        }
+        sb.append("6000 80 fd 5b00 5b00 5b00 5b00");
+        byte[] code = HexCodec.decode(sb.toString().replace(" ", ""));
+        String[] rs = RewriteDispatcher(HexCodec.toStringArray(HexCodec.encode(code)));
+        System.out.println(HexCodec.encode(rs));
+        //from the selector on the stack every selector reaches the STOP of its function (the functions moved to the end)
+        byte[] rewritten = HexCodec.toBytes(rs);
+        int functions = rewritten.length - 2 * sels.length;
+        for (int i = 0; i < sels.length; i++) {
+            long selector = Long.parseLong(sels[i], 16);
+            Checks.check(DispatchGas(code, 6, selector)[0] == target + 2 * i + 1
+                    && DispatchGas(rewritten, 6, selector)[0] == functions + 2 * i + 1, "selector " + sels[i] + " dispatch");
+        }
+        //a selector of no function stops at the REVERT of PUSH1 0 DUP1 REVERT
+        int miss = (int) DispatchGas(rewritten, 6, 0x12345678L)[0];
+        Checks.check(HexCodec.encode(Arrays.copyOfRange(rewritten, miss - 3, miss + 1)).equals("600080fd"), "miss reverts");
+        //the chain is deleted: the miss label of the tree is followed by the miss code
+        Checks.check(HexCodec.encode(rewritten).contains("5b600080fd5b00"), "chain deleted");
+    }
+}
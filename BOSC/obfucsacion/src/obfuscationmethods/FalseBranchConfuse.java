@@ -1,19 +1,23 @@
 package obfuscationmethods;
 
+import utils.EditBuffer;
+import utils.HexCodec;
 import utils.InsertIndex;
+import utils.Log;
+import utils.Opcodes;
+import utils.SnippetTemplates;
 
-import java.util.List;
+import java.util.Arrays;
+import java.util.Random;
 
 import static utils.CodeStingToArray.ToArray;
-import static utils.FindJumpAndChangeBValue.ChangeBValue;
-import static utils.FindJumpAndChangeBValue.findDupicateInArray;
 import static utils.InsertIndex.insertIndex;
-import static utils.insertElement.insertElement;
 
 /**
  * False branch obfuscation technology: convert unconditional jumps into conditional jumps,
  */
 public class FalseBranchConfuse {
+    private static final Log LOG = Log.get(FalseBranchConfuse.class);
     private int offset; 
     /**
      * Retrieves whether there is a jump instruction in the object bytecode
@@ -22,7 +26,7 @@ public class FalseBranchConfuse {
      */
     public static int isExistJump(String[] bytecode){
         if(bytecode.length == 0){
-            System.out.println("The bytecode is empty, please enter a bytecode！");
+            LOG.warn("The bytecode is empty, please enter a bytecode!");
         }
 
         for (int i = 0; i < bytecode.length; i++) {
@@ -32,26 +36,51 @@ public class FalseBranchConfuse {
         }
         return -1;
     }
+    /**
+     * Offset of the first JUMP instruction in bytecode bytes
+     * @return offset, -1 if there is none
+     */
+    public static int isExistJump(byte[] bytecode){
+        for (int pc = 0; pc < bytecode.length; pc = Opcodes.next(bytecode, pc)) {
+            if ((bytecode[pc] & 0xFF) == Opcodes.JUMP){
+                return pc;
+            }
+        }
+        return -1;
+    }
+
     /**
      * @param bytecode
      * @param index jump's index
      * @return bytecode
      */
     public static String[] changeToJumpi(String[] bytecode, int index){
-//        String extra = "01";
-//        bytecode[index-2] = extra;
+        EditBuffer buf = new EditBuffer(HexCodec.toBytes(bytecode));
+        changeToJumpi(buf, index, new Random());
+        return HexCodec.toStringArray(buf.apply());
+    }
 
-        if(index-2>=0){
-            insertElement(bytecode,"6001",index-2);
+    /**
+     * The jump is changed to a jumpi whose condition is always true, the jump target stays unchanged.
+     * A false branch is placed behind it.
+     * @param buf
+     * @param index offset of a JUMP in the original code
+     */
+    public static void changeToJumpi(EditBuffer buf, int index, Random random){
+        byte[] code = buf.original();
+        int previous = -1;
+        for (int pc = 0; pc < index; pc = Opcodes.next(code, pc)) {
+            previous = pc;
         }
-        bytecode[index] = "57"; //The jump is changed to jumpi,
-                                // and the jumpdest value of the last push stack remains unchanged.
-        insertElement(bytecode,"60006000575b",index+1+2);
-        List<Integer> arrays = findDupicateInArray(bytecode, index + 9);
-        for (int i = 0; i < arrays.size(); i++) {
-            ChangeBValue(bytecode,i,8);
+        if (previous >= 0 && buf.jumpTarget(previous) >= 0 && Opcodes.next(code, previous) == index){
+            //PUSH target JUMP -> PUSH1 1 PUSH target JUMPI, the target stays next to the jump
+            buf.stamp(previous, SnippetTemplates.get(SnippetTemplates.JUMPI_CONDITION + ".push"), random);
+        }else {
+            //computed target: PUSH1 1 SWAP1 JUMPI
+            buf.stamp(index, SnippetTemplates.get(SnippetTemplates.JUMPI_CONDITION + ".swap"), random);
         }
-        return bytecode;
+        buf.patch(index, Opcodes.JUMPI);
+        buf.stamp(index + 1, SnippetTemplates.get(SnippetTemplates.FALSE_BRANCH + ".zero"), random);
     }
 
     /**
@@ -61,14 +90,68 @@ public class FalseBranchConfuse {
      * @return
      */
     public static String[] InsertJumpi(String[] bytecode,int insertIndex){
-        String trueAndFalseBranch = "60006000575b";
-        int i = insertIndex(bytecode);
-        insertElement(bytecode,trueAndFalseBranch,i);
-        List<Integer> arrays = findDupicateInArray(bytecode, insertIndex + 6);
-        for (int j = 0; j < arrays.size(); j++) {
-            ChangeBValue(bytecode,j,6);
+        EditBuffer buf = new EditBuffer(HexCodec.toBytes(bytecode));
+        Random random = new Random();
+        int i = insertIndex(buf.original(), random);
+        if (i >= 0) {
+            InsertJumpi(buf, i, random);
+        }
+        return HexCodec.toStringArray(buf.apply());
+    }
+
+    /**
+     * Stamp a jumpi that is never taken, its target is a random jumpdest of the original code
+     */
+    public static void InsertJumpi(EditBuffer buf, int insertIndex, Random random){
+        buf.stamp(insertIndex, SnippetTemplates.get(SnippetTemplates.FALSE_BRANCH + ".zero"), random);
+    }
+
+    public static String[] InsertFalseBranch(String[] bytecode){
+        EditBuffer buf = new EditBuffer(HexCodec.toBytes(bytecode));
+        InsertFalseBranch(buf, new PassOptions());
+        return HexCodec.toStringArray(buf.apply());
+    }
+
+    /**
+     * False branch obfuscation: if there is a jump, a random one is changed to a true and false
+     * instruction with a conditional jump, otherwise the true and false paths are constructed
+     */
+    public static void InsertFalseBranch(EditBuffer buf, PassOptions options){
+        byte[] code = buf.original();
+        if (buf.jumpdests().length == 0){
+            //the false branch needs a JUMPDEST to point at
+            return;
+        }
+        Random random = options.getRandom();
+        boolean[] eligible = options.eligibleOffsets(code);
+        int branchGas = SnippetTemplates.get(SnippetTemplates.FALSE_BRANCH + ".zero").gasCost();
+        //condition, JUMP -> JUMPI and the false branch
+        int jumpiGas = SnippetTemplates.get(SnippetTemplates.JUMPI_CONDITION + ".swap").gasCost()
+                + Opcodes.baseGas(Opcodes.JUMPI) - Opcodes.baseGas(Opcodes.JUMP) + branchGas;
+        double[] weights = options.siteWeights(code, jumpiGas);
+        int[] jumps = new int[16];
+        int count = 0;
+        double total = 0;
+        for (int pc = 0; pc < code.length; pc = Opcodes.next(code, pc)) {
+            if ((code[pc] & 0xFF) == Opcodes.JUMP && (eligible == null || eligible[pc])
+                    && (weights == null || weights[pc] > 0)){
+                if (count == jumps.length){
+                    jumps = Arrays.copyOf(jumps, count * 2);
+                }
+                jumps[count++] = pc;
+                total += weights == null ? 0 : weights[pc];
+            }
+        }
+        if (count == 0){
+            int i = options.insertIndex(code, branchGas);
+            if (i >= 0){
+                InsertJumpi(buf, i, random);
+            }
+        }else {
+            int jump = weights == null ? jumps[random.nextInt(count)] : InsertIndex.pick(jumps, count, weights, total, random);
+            options.charge(code, jump, jumpiGas);
+            changeToJumpi(buf, jump, random);
         }
-        return bytecode;
     }
 
 
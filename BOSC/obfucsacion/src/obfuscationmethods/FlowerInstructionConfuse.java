@@ -1,12 +1,13 @@
 package obfuscationmethods;
 
+import utils.EditBuffer;
+import utils.HexCodec;
+import utils.SnippetTemplate;
+import utils.SnippetTemplates;
+
 import java.util.Arrays;
 import java.util.List;
-
-import static utils.FindJumpAndChangeBValue.ChangeBValue;
-import static utils.FindJumpAndChangeBValue.findDupicateInArray;
-import static utils.InsertIndex.insertIndex;
-import static utils.insertElement.insertElement;
+import java.util.Random;
 
 /**
  * Flower instruction obfuscation: Constructing junk instructions or invalid instructions,
@@ -18,23 +19,28 @@ public class FlowerInstructionConfuse {
         return "565B";
     }
 
+    /**
+     * @param flowerInstruction kept for existing callers, the snippet comes from the flower templates
+     */
     public static String[] InsertFlowerInstructions(String[] bytecode,String flowerInstruction){
+        EditBuffer buf = new EditBuffer(HexCodec.toBytes(bytecode));
+        InsertFlowerInstructions(buf, new PassOptions());
+        return HexCodec.toStringArray(buf.apply());
+    }
 
-        int index = insertIndex(bytecode);
-
-        //String[] array = insertElement(bytecode, flowerInstruction, index);
-        //int index2 = insertIndex(bytecode);
-        //329ddeaffadaffafca
-        //String[] array = insertElement(insertElement(bytecode, flowerInstruction, index), "6006", index2);
-        String[] array = insertElement(bytecode, "6006", index);
-
-        List<Integer> arrays = findDupicateInArray(bytecode, index + 2);
-
-        for (int i = 0; i < arrays.size(); i++) {
-            ChangeBValue(bytecode,i,8);
+    /**
+     * Stamp one of the registered flower templates at a random insertion site
+     */
+    public static void InsertFlowerInstructions(EditBuffer buf, PassOptions options){
+        byte[] code = buf.original();
+        Random random = options.getRandom();
+        List<SnippetTemplate> flowers = SnippetTemplates.family(SnippetTemplates.FLOWER);
+        SnippetTemplate flower = flowers.get(random.nextInt(flowers.size()));
+        int index = options.insertIndex(code, flower.gasCost());
+        if (index < 0) {
+            return;
         }
-
-        return array;
+        buf.stamp(index, flower, random);
     }
 
     public static void main(String[] args) {
@@ -1,14 +1,13 @@
 package obfuscationmethods;
 
+import utils.EditBuffer;
+import utils.HexCodec;
+import utils.SnippetTemplate;
+import utils.SnippetTemplates;
+
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
-import static utils.FindJumpAndChangeBValue.ChangeBValue;
-import static utils.FindJumpAndChangeBValue.findDupicateInArray;
-import static utils.InsertIndex.insertIndex;
-import static utils.insertElement.insertElement;
-
 /**
  * Incomplete instruction obfuscation technology: By inserting incomplete instructions, the decompiler will make an error
  */
@@ -26,15 +25,23 @@ public class IncompleteInstructionsConfuse {
     }
 
     public static String[] InsertIncompleteInstructions(String[] bytecode){
+        EditBuffer buf = new EditBuffer(HexCodec.toBytes(bytecode));
+        InsertIncompleteInstructions(buf, new PassOptions());
+        return HexCodec.toStringArray(buf.apply());
+    }
 
-        int i = insertIndex(bytecode);
-        insertElement(bytecode,ConstructUnconditionalJump(),i);
-
-        List<Integer> array = findDupicateInArray(bytecode, i + 5);
-        for (int i1 = 0; i1 < array.size(); i1++) {
-            ChangeBValue(bytecode,i1,5);
+    /**
+     * Stamp an unconditional jump over an incomplete instruction at a random insertion site,
+     * the jump target is relocated together with the rest of the code
+     */
+    public static void InsertIncompleteInstructions(EditBuffer buf, PassOptions options){
+        byte[] code = buf.original();
+        SnippetTemplate template = SnippetTemplates.get(SnippetTemplates.INCOMPLETE + ".add");
+        int i = options.insertIndex(code, template.gasCost());
+        if (i < 0) {
+            return;
         }
-        return bytecode;
+        buf.stamp(i, template, options.getRandom());
     }
 
     //tested
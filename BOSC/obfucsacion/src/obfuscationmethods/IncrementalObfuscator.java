@@ -0,0 +1,375 @@
+package obfuscationmethods;
+
+import utils.BlockDiff;
+import utils.ByteCodeCleanAndRecovry;
+import utils.ByteCodeInput;
+import utils.ByteCodeOutput;
+import utils.ControlFlowGraph;
+import utils.EditBuffer;
+import utils.HexCodec;
+import utils.OffsetMap;
+import utils.Opcodes;
+import utils.SnippetTemplate;
+import utils.StackFlow;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Incremental re-obfuscation of a recompiled contract.
+ * The decisions of the previous obfuscation are read back from its output and offset map: the code
+ * inserted in front of every original instruction (as one template, jump targets into itself
+ * self-relative, jump targets to original JUMPDESTs absolute) and the patched opcodes.
+ * The previous and the new runtime are diffed by basic block (BlockDiff). Decisions of unchanged
+ * blocks are stamped again at their new offsets and the standard passes run restricted to the changed
+ * blocks (PassOptions.restrict on a copy of the options), all in one "incremental" pass over one edit
+ * buffer, so the new code is laid out, validated and mapped once. A block is re-obfuscated as a whole when one of its
+ * decisions cannot be carried over (a target in a changed block or in code inserted in front of
+ * another instruction, a swapped opcode whose partner changed, code that does not decode, an offset
+ * up to the last untracked JUMPDEST of the new runtime).
+ * An unchanged runtime gets the previous output back as is.
+ *
+ * usage: IncrementalObfuscator previousOriginal.hex previousObfuscated.hex previousObfuscated.map newOriginal.hex output.hex [seed]
+ */
+public class IncrementalObfuscator {
+
+    /**
+     * What was done at one instruction of the previous runtime
+     */
+    private static final class Decision {
+        final int offset;
+        //code inserted in front of the instruction, null if none
+        SnippetTemplate prefix;
+        //ABSOLUTE slots: offsets of the previous runtime
+        long[] values;
+        //opcode the instruction was patched to, -1 if none
+        int patch = -1;
+        //offset of the instruction the opcode was swapped with, -1 if none
+        int partner = -1;
+        //false if some of it could not be read back
+        boolean complete = true;
+
+        Decision(int offset) {
+            this.offset = offset;
+        }
+    }
+
+    public static final class Result {
+        public ObfuscationPipeline.Result pipeline;
+        public int blocks;
+        public int unchangedBlocks;
+        //unchanged blocks whose decisions were stamped again
+        public int reusedBlocks;
+        public int decisions;
+        public int reusedDecisions;
+
+        @Override
+        public String toString() {
+            return reusedBlocks + "/" + blocks + " blocks reused (" + unchangedBlocks + " unchanged), "
+                    + reusedDecisions + "/" + decisions + " decisions reused";
+        }
+    }
+
+    private final PassOptions options;
+    private final long seed;
+
+    public IncrementalObfuscator(PassOptions options, long seed) {
+        this.options = options;
+        this.seed = seed;
+    }
+
+    /**
+     * Obfuscate runtime reusing the obfuscation of previousRuntime
+     * @param previousObfuscated obfuscated runtime section of the previous run
+     * @param previousMap its offset map back to previousRuntime
+     */
+    public Result run(byte[] previousRuntime, byte[] previousObfuscated, OffsetMap previousMap, byte[] runtime) {
+        if (previousMap.oldLength() != previousRuntime.length || previousMap.newLength() != previousObfuscated.length) {
+            throw new IllegalArgumentException("the offset map maps " + previousMap.newLength() + " to "
+                    + previousMap.oldLength() + " bytes, not " + previousObfuscated.length + " to " + previousRuntime.length);
+        }
+        Result result = new Result();
+        if (Arrays.equals(previousRuntime, runtime)) {
+            result.pipeline = new ObfuscationPipeline.Result();
+            result.pipeline.code = previousObfuscated;
+            result.pipeline.offsets = previousMap;
+            result.blocks = new ControlFlowGraph(runtime).blocks().size();
+            result.unchangedBlocks = result.blocks;
+            result.reusedBlocks = result.blocks;
+            return result;
+        }
+        BlockDiff diff = new BlockDiff(previousRuntime, runtime);
+        List<ControlFlowGraph.Block> oldBlocks = diff.oldCfg().blocks();
+        Map<Integer, Decision> decisions = decisions(previousRuntime, previousObfuscated, previousMap);
+
+        //code up to it must not move, see StackFlow.lastUntrackedJumpdest()
+        StackFlow flow = new StackFlow(runtime);
+        int pinned = flow.lastUntrackedJumpdest();
+        //a block is reused if it is unchanged and every decision in it can be carried over
+        boolean[] lost = new boolean[oldBlocks.size()];
+        for (ControlFlowGraph.Block block : oldBlocks) {
+            lost[block.index] = diff.newBlock(block.index) < 0;
+        }
+        for (Decision decision : decisions.values()) {
+            boolean movable = decision.complete && diff.newOffset(decision.offset) > pinned;
+            for (int i = 0; decision.values != null && i < decision.values.length; i++) {
+                SnippetTemplate.SlotKind kind = decision.prefix.slots()[i].kind;
+                movable &= kind != SnippetTemplate.SlotKind.ABSOLUTE || diff.newOffset((int) decision.values[i]) >= 0;
+            }
+            if (!movable) {
+                lost[blockOf(diff, previousRuntime, decision.offset)] = true;
+            }
+        }
+        //a swap is only kept together with its partner
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Decision decision : decisions.values()) {
+                if (decision.partner >= 0) {
+                    int a = blockOf(diff, previousRuntime, decision.offset);
+                    int b = blockOf(diff, previousRuntime, decision.partner);
+                    if (lost[a] != lost[b]) {
+                        lost[a] = true;
+                        lost[b] = true;
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        result.blocks = diff.newCfg().blocks().size();
+        result.unchangedBlocks = diff.unchangedBlocks();
+        result.decisions = decisions.size();
+        List<Decision> reused = new ArrayList<>();
+        for (Decision decision : decisions.values()) {
+            if (!lost[blockOf(diff, previousRuntime, decision.offset)]) {
+                reused.add(decision);
+            }
+        }
+        result.reusedDecisions = reused.size();
+
+        boolean[] region = new boolean[runtime.length + 1];
+        for (ControlFlowGraph.Block block : diff.newCfg().blocks()) {
+            int old = diff.oldBlock(block.index);
+            if (old < 0 || lost[old]) {
+                for (int pc = block.start; pc < block.end; pc++) {
+                    region[pc] = true;
+                }
+                if (block.end == runtime.length) {
+                    region[runtime.length] = true;
+                }
+            } else {
+                result.reusedBlocks++;
+            }
+        }
+
+        //the options of this obfuscator stay unrestricted, runs may share them
+        PassOptions restricted = options.copy().restrict(runtime, region).analyze(flow);
+        ObfuscationPipeline.Pass fresh = ObfuscationPipeline.standard(restricted, seed).asPass();
+        ObfuscationPipeline pipeline = new ObfuscationPipeline(restricted, seed).add("incremental", (buf, o) -> {
+            reuse(buf, diff, reused);
+            fresh.run(buf, o);
+        }).addPeephole();
+        result.pipeline = pipeline.run(runtime);
+        return result;
+    }
+
+    //block of an old offset, the code length belongs to the last block
+    private static int blockOf(BlockDiff diff, byte[] previousRuntime, int offset) {
+        return offset == previousRuntime.length ? diff.oldCfg().blocks().size() - 1 : diff.oldCfg().blockAt(offset).index;
+    }
+
+    private static void reuse(EditBuffer buf, BlockDiff diff, List<Decision> reused) {
+        for (Decision decision : reused) {
+            int offset = diff.newOffset(decision.offset);
+            if (decision.prefix != null) {
+                long[] values = decision.values.clone();
+                SnippetTemplate.Slot[] slots = decision.prefix.slots();
+                for (int i = 0; i < values.length; i++) {
+                    if (slots[i].kind == SnippetTemplate.SlotKind.ABSOLUTE) {
+                        values[i] = diff.newOffset((int) values[i]);
+                    }
+                }
+                buf.insert(offset, decision.prefix, values);
+            }
+            if (decision.patch >= 0) {
+                buf.patch(offset, decision.patch);
+            }
+        }
+    }
+
+    /**
+     * Decisions of the previous obfuscation by previous runtime offset
+     */
+    private static Map<Integer, Decision> decisions(byte[] original, byte[] obfuscated, OffsetMap map) {
+        int n = original.length;
+        int[] origin = new int[obfuscated.length];
+        boolean[] inserted = new boolean[obfuscated.length];
+        for (int run = 0; run < map.runs(); run++) {
+            int end = run + 1 < map.runs() ? map.newOffset(run + 1) : map.newLength();
+            OffsetMap.Kind kind = map.kind(run);
+            for (int pc = map.newOffset(run); pc < end; pc++) {
+                origin[pc] = kind == OffsetMap.Kind.ORIGINAL ? map.oldOffset(run) + pc - map.newOffset(run) : map.oldOffset(run);
+                inserted[pc] = kind == OffsetMap.Kind.INSERTED;
+            }
+        }
+        //first obfuscated byte of every original instruction, the code inserted in front of it
+        int[] at = new int[n + 1];
+        int[] from = new int[n + 1];
+        int[] to = new int[n + 1];
+        int[] count = new int[n + 1];
+        Arrays.fill(at, -1);
+        Arrays.fill(from, -1);
+        for (int pc = 0; pc < obfuscated.length; pc++) {
+            int o = origin[pc];
+            if (inserted[pc]) {
+                from[o] = from[o] < 0 ? pc : from[o];
+                to[o] = pc + 1;
+                count[o]++;
+            } else if (at[o] < 0) {
+                at[o] = pc;
+            }
+        }
+
+        StackFlow flow = new StackFlow(obfuscated);
+        EditBuffer refs = new EditBuffer(original);
+        Map<Integer, Decision> decisions = new LinkedHashMap<>();
+        Map<Integer, List<Integer>> swaps = new HashMap<>();
+        //every instruction and the end of the code
+        for (int pc = 0; pc <= n; pc = pc < n ? Math.min(Opcodes.next(original, pc), n) : n + 1) {
+            Decision decision = new Decision(pc);
+            boolean decided = false;
+            if (from[pc] >= 0) {
+                decided = true;
+                //bytes of other instructions in between, the inserted code does not decode
+                if (to[pc] - from[pc] == count[pc]) {
+                    prefix(decision, flow, origin, inserted, at, original, from[pc], to[pc]);
+                }
+                decision.complete = decision.prefix != null;
+            }
+            if (pc < n && at[pc] >= 0 && refs.jumpTarget(pc) < 0 && obfuscated[at[pc]] != original[pc]) {
+                decided = true;
+                int op = obfuscated[at[pc]] & 0xFF;
+                if (Opcodes.immediateSize(op) == Opcodes.immediateSize(original[pc] & 0xFF)) {
+                    decision.patch = op;
+                    if ((original[pc] & 0xFF) != Opcodes.JUMP || op != Opcodes.JUMPI) {
+                        swaps.computeIfAbsent((original[pc] & 0xFF) << 8 | op, k -> new ArrayList<>()).add(pc);
+                    }
+                } else {
+                    decision.complete = false;
+                }
+            } else if (pc < n && at[pc] >= 0 && refs.jumpTarget(pc) < 0) {
+                //an immediate a later pass took for a jump target
+                for (int k = 1; k <= Opcodes.immediateSize(original[pc] & 0xFF) && pc + k < n && at[pc] + k < obfuscated.length; k++) {
+                    if (obfuscated[at[pc] + k] != original[pc + k]) {
+                        decided = true;
+                        decision.complete = false;
+                    }
+                }
+            }
+            if (decided) {
+                decisions.put(pc, decision);
+            }
+        }
+        //opcode swaps come in pairs, a swap without a partner is not carried over
+        for (Map.Entry<Integer, List<Integer>> entry : swaps.entrySet()) {
+            int key = entry.getKey();
+            List<Integer> partners = swaps.get((key & 0xFF) << 8 | key >>> 8);
+            for (int offset : entry.getValue()) {
+                Decision decision = decisions.get(offset);
+                for (int i = 0; partners != null && i < partners.size() && decision.partner < 0; i++) {
+                    Decision partner = decisions.get(partners.get(i));
+                    if (partner.partner < 0 && partner != decision) {
+                        decision.partner = partner.offset;
+                        partner.partner = decision.offset;
+                    }
+                }
+                decision.complete &= decision.partner >= 0;
+            }
+        }
+        return decisions;
+    }
+
+    //template of the code inserted at [from, to), left null if a jump target cannot be expressed
+    private static void prefix(Decision decision, StackFlow flow, int[] origin, boolean[] inserted,
+                               int[] at, byte[] original, int from, int to) {
+        byte[] code = flow.code();
+        //relocated PUSH1 are laid out as PUSH2, the target may move beyond 255
+        int[] position = new int[to - from + 1];
+        int length = 0;
+        for (int pc = from; pc < to; pc = Opcodes.next(code, pc)) {
+            if (Opcodes.next(code, pc) > to) {
+                return;
+            }
+            position[pc - from] = length;
+            length += Opcodes.next(code, pc) - pc + (flow.jumpTarget(pc) >= 0 && (code[pc] & 0xFF) == Opcodes.PUSH1 ? 1 : 0);
+        }
+        position[to - from] = length;
+        StringBuilder pattern = new StringBuilder();
+        List<Long> values = new ArrayList<>();
+        for (int pc = from; pc < to; pc = Opcodes.next(code, pc)) {
+            int op = code[pc] & 0xFF;
+            int target = flow.jumpTarget(pc);
+            if (target < 0) {
+                pattern.append(HexCodec.encode(Arrays.copyOfRange(code, pc, Opcodes.next(code, pc))));
+                continue;
+            }
+            pattern.append(HexCodec.byteString(op == Opcodes.PUSH1 ? Opcodes.PUSH2 : op));
+            if (target >= from && target < to) {
+                pattern.append("{rel:").append(position[target - from]).append('}');
+                values.add(0L);
+            } else if (!inserted[target] && at[origin[target]] == target && (original[origin[target]] & 0xFF) == Opcodes.JUMPDEST) {
+                pattern.append("{abs}");
+                values.add((long) origin[target]);
+            } else {
+                //a JUMPDEST inserted in front of another instruction
+                return;
+            }
+        }
+        decision.prefix = SnippetTemplate.compile("reuse", pattern.toString());
+        decision.values = values.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    //tested
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 5) {
+            byte[] previous = ByteCodeInput.readBytecode(args[0]);
+            byte[] previousObfuscated = ByteCodeCleanAndRecovry.byteCodeClean(ByteCodeInput.readBytecode(args[1]));
+            OffsetMap map = OffsetMap.load(Paths.get(args[2]));
+            byte[] bytecode = ByteCodeInput.readBytecode(args[3]);
+            long seed = args.length > 5 ? Long.parseLong(args[5]) : System.nanoTime();
+            Result result = new IncrementalObfuscator(new PassOptions(), seed).run(
+                    ByteCodeCleanAndRecovry.byteCodeClean(previous), previousObfuscated, map,
+                    ByteCodeCleanAndRecovry.byteCodeClean(bytecode));
+            ByteCodeOutput.createBytecodeFile(args[4], ByteCodeCleanAndRecovry.byteCodeRecovery(bytecode, result.pipeline.code));
+            ByteCodeOutput.createBinaryFile(args[4] + ".map", result.pipeline.offsets.toBytes());
+            System.out.println(result);
+            return;
+        }
+        byte[] runtime = ByteCodeCleanAndRecovry.byteCodeClean(HexCodec.decode(
+                "608060405234801561001057600080fd5b50610150806100206000396000f3fe608060405234801561001057600080fd5b50"
+                + "600436106100365760003560e01c80632e64cec11461003b5780636057361d14610059575b600080fd5b61004361007556"
+                + "5b60405161005091906100d9565b60405180910390f35b610073600480360381019061006e919061009d565b61007e565b"
+                + "005b60008054905090565b8060008190555050565b60008135905061009781610103565b92915050565b60006020828403"
+                + "12156100b3576100b26100fe565b5b60006100c184828501610088565b91505092915050565b6100d3816100f4565b8252"
+                + "5050565b60006020820190506100ee60008301846100ca565b92915050565b6000819050919050565b600080fd5b61010c"
+                + "816100f4565b811461011757600080fd5b5056fea2646970667358221220404e37f487a89a932dca5e77faaf6ca2de3b99"
+                + "1f93d230604b1b8daaef64766264736f6c63430008070033"));
+        ObfuscationPipeline.Result first = ObfuscationPipeline.standard(new PassOptions(), 7).run(runtime);
+        OffsetMap map = OffsetMap.wrap(ByteBuffer.wrap(first.offsets.toBytes()));
+        Result same = new IncrementalObfuscator(new PassOptions(), 8).run(runtime, first.code, map, runtime);
+        System.out.println(same + ", same output: " + Arrays.equals(same.pipeline.code, first.code));
+        //recompiled with PUSH1 0 POP in front of the JUMPDEST of store()
+        EditBuffer patch = new EditBuffer(runtime);
+        patch.insert(0x7e, SnippetTemplate.compile("change", "6000 50"), new long[0]);
+        Result changed = new IncrementalObfuscator(new PassOptions(), 8).run(runtime, first.code, map, patch.apply());
+        System.out.println(changed + ", " + first.code.length + " -> " + changed.pipeline.code.length + " bytes");
+    }
+}
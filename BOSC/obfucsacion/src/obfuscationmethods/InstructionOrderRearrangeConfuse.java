@@ -1,5 +1,8 @@
 package obfuscationmethods;
 
+import utils.EditBuffer;
+import utils.Opcodes;
+
 import java.util.*;
 
 /**
@@ -59,6 +62,31 @@ public class InstructionOrderRearrangeConfuse {
         return bytecode;
     }
 
+    /**
+     * Swap the independent instructions pairwise through opcode patches, only at eligible offsets
+     */
+    public static void OrderRearrange(EditBuffer buf, String[] IndependentInstruction, PassOptions options){
+        byte[] code = buf.original();
+        boolean[] independent = new boolean[256];
+        for (String instruction : IndependentInstruction) {
+            independent[Integer.parseInt(instruction, 16)] = true;
+        }
+        boolean[] eligible = options.eligibleOffsets(code);
+        List<Integer> rs = new ArrayList<>();
+        for (int pc = 0; pc < code.length; pc = Opcodes.next(code, pc)) {
+            if (independent[code[pc] & 0xFF] && (eligible == null || eligible[pc])){
+                rs.add(pc);
+            }
+        }
+        Collections.shuffle(rs, options.getRandom());
+        for (int j = 0; j + 1 < rs.size(); j = j + 2) {
+            int a = rs.get(j);
+            int b = rs.get(j + 1);
+            buf.patch(a, code[b] & 0xFF);
+            buf.patch(b, code[a] & 0xFF);
+        }
+    }
+
     //tested
     public static void main(String[] args) {
         String[] example = {"60","46","80","38","3A","23","30","42","55","15","17"};
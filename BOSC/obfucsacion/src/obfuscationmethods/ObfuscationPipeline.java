@@ -0,0 +1,341 @@
+package obfuscationmethods;
+
+import utils.ByteCodeValidator;
+import utils.EditBuffer;
+import utils.HexCodec;
+import utils.ObfuscationCounters;
+import utils.ObfuscationEvents;
+import utils.OffsetMap;
+import utils.Opcodes;
+import utils.StackFlow;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.function.UnaryOperator;
+
+/**
+ * Runs obfuscation passes one after another over a runtime section.
+ * Every pass gets a fresh EditBuffer over the code of the previous one; before the pass the edit
+ * log (and the gas charged to the profile) is marked, after it the layout is validated. An invalid
+ * pass is rolled back to the mark and retried with a seed derived from the pipeline seed, the pass
+ * index and the attempt, so a run is reproducible from its seed. A pass that keeps failing is skipped.
+ * The offset maps of the applied passes are chained into one map from the result to the input.
+ * With addPeephole() PeepholeOptimizer runs over the result of the last pass as a final "peephole"
+ * stage, its rounds validate themselves and are chained into the map as well.
+ * Every attempt and its relocation is a JFR event (ObfuscationEvents) and counted in ObfuscationCounters.
+ */
+public class ObfuscationPipeline {
+
+    public static final int DEFAULT_RETRIES = 3;
+    public static final String PEEPHOLE = "peephole";
+
+    /**
+     * One obfuscation pass over an edit buffer
+     */
+    public interface Pass {
+        void run(EditBuffer buf, PassOptions options);
+
+        /**
+         * Lay out the edits of the pass, see PartitionedPass
+         */
+        default EditBuffer.Layout layout(EditBuffer buf) {
+            return buf.layout();
+        }
+
+        /**
+         * Estimated gas the edits add to a call, see staticGas()
+         */
+        default long gasDelta(EditBuffer buf, EditBuffer.Layout layout) {
+            return staticGas(buf);
+        }
+    }
+
+    /**
+     * What happened to one pass
+     */
+    public static final class PassResult {
+        public final String name;
+        public int attempts;
+        public boolean applied;
+        //problems of the last failed attempt
+        public List<String> problems = Collections.emptyList();
+        public long nanos;
+        public int sizeBefore;
+        public int sizeAfter;
+        public int edits;
+        public int insertedBytes;
+        public int relocatedJumps;
+        //input offsets obfuscation code was inserted at
+        public int[] sites = new int[0];
+        //estimated gas change of a call, negative when the pass saves gas, see Pass.gasDelta()
+        public long gasDelta;
+        public long seed;
+
+        PassResult(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name + (applied ? " applied" : " skipped " + problems) + " attempts:" + attempts
+                    + " bytes:" + sizeBefore + "->" + sizeAfter + " " + nanos / 1000 + "us";
+        }
+    }
+
+    public static final class Result {
+        public byte[] code;
+        //obfuscated offset -> input offset
+        public OffsetMap offsets;
+        public final List<PassResult> passes = new ArrayList<>();
+        //what the peephole stage saved, null without one
+        public PeepholeOptimizer.Stats peephole;
+        //jumps a constant that is not a JUMPDEST may reach in the input and in the result (StackFlow)
+        public int badJumpsIn;
+        public int badJumpsOut;
+    }
+
+    private static final ObfuscationCounters COUNTERS = ObfuscationCounters.get();
+
+    private final PassOptions options;
+    private final long seed;
+    //contract id of the events
+    private String contract = "";
+    private int retries = DEFAULT_RETRIES;
+    private final List<String> names = new ArrayList<>();
+    private final List<Pass> passes = new ArrayList<>();
+    private boolean peephole;
+
+    public ObfuscationPipeline(PassOptions options, long seed) {
+        this.options = options;
+        this.seed = seed;
+    }
+
+    /**
+     * The passes of Main in Main's order, then the peephole stage
+     */
+    public static ObfuscationPipeline standard(PassOptions options, long seed) {
+        return new ObfuscationPipeline(options, seed).addStandard();
+    }
+
+    /**
+     * Add the passes of Main in Main's order and the peephole stage
+     */
+    public ObfuscationPipeline addStandard() {
+        return addStandard(pass -> pass);
+    }
+
+    //the insertion passes (incomplete, false branch, flower) go through insertion
+    private ObfuscationPipeline addStandard(UnaryOperator<Pass> insertion) {
+        String[] independent = InstructionOrderRearrangeConfuse.constructIndependentInstruction();
+        return add("dispatcher", DispatcherRewriteConfuse.PASS)
+                .add("incomplete", insertion.apply(IncompleteInstructionsConfuse::InsertIncompleteInstructions))
+                .add("falsebranch", insertion.apply(FalseBranchConfuse::InsertFalseBranch))
+                .add("flower", insertion.apply(FlowerInstructionConfuse::InsertFlowerInstructions))
+                .add("rearrange", (buf, o) -> InstructionOrderRearrangeConfuse.OrderRearrange(buf, independent, o))
+                .addPeephole();
+    }
+
+    /**
+     * The standard pipeline with the insertion passes laid out over regions of about regionBytes on the
+     * executor, same output as standard(options, seed), see PartitionedPass
+     */
+    public static ObfuscationPipeline partitioned(PassOptions options, long seed, ExecutorService executor, int regionBytes) {
+        return new ObfuscationPipeline(options, seed)
+                .addStandard(pass -> new PartitionedPass(pass, executor, regionBytes));
+    }
+
+    public ObfuscationPipeline add(String name, Pass pass) {
+        names.add(name);
+        passes.add(pass);
+        return this;
+    }
+
+    /**
+     * Run PeepholeOptimizer over the result of the last pass
+     */
+    public ObfuscationPipeline addPeephole() {
+        this.peephole = true;
+        return this;
+    }
+
+    /**
+     * The passes of this pipeline as one pass: they run one after another over the same edit buffer,
+     * so every pass sees the input code and all edits are laid out (and relocated) once.
+     * The peephole stage is not part of it.
+     */
+    public Pass asPass() {
+        List<Pass> all = new ArrayList<>(passes);
+        return (buf, o) -> {
+            for (Pass pass : all) {
+                pass.run(buf, o);
+            }
+        };
+    }
+
+    /**
+     * Retries of a pass after its first attempt failed
+     */
+    public ObfuscationPipeline setRetries(int retries) {
+        this.retries = retries;
+        return this;
+    }
+
+    /**
+     * Contract id the JFR events of this pipeline carry
+     */
+    public ObfuscationPipeline setContract(String contract) {
+        this.contract = contract;
+        return this;
+    }
+
+    public PassOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Static gas of the edits, every site run once: the inserted code along its fall-through path,
+     * minus the deleted instructions, plus what patched opcodes cost more
+     */
+    public static long staticGas(EditBuffer buf) {
+        byte[] code = buf.original();
+        long gas = 0;
+        for (EditBuffer.Edit edit : buf.edits()) {
+            if (edit.kind == EditBuffer.Kind.INSERT) {
+                gas += edit.template.gasCost();
+            } else if (edit.kind == EditBuffer.Kind.DELETE) {
+                gas -= Opcodes.baseGas(code[edit.offset] & 0xFF);
+            } else if (edit.kind == EditBuffer.Kind.PATCH) {
+                gas += Opcodes.baseGas(edit.opcode) - Opcodes.baseGas(code[edit.offset] & 0xFF);
+            }
+        }
+        return gas;
+    }
+
+    /**
+     * Seed of an attempt of a pass (splitmix64 of the three)
+     */
+    public static long deriveSeed(long seed, int pass, int attempt) {
+        long z = seed + 0x9e3779b97f4a7c15L * (1 + pass * 31L + attempt);
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    public Result run(byte[] runtime) {
+        Result result = new Result();
+        byte[] code = runtime;
+        //StackFlow of code, the layout of every pass hands the one its validation ran to the next pass
+        StackFlow flow = new StackFlow(runtime);
+        result.badJumpsIn = flow.badJumps();
+        result.offsets = OffsetMap.identity(runtime.length);
+        for (int i = 0; i < passes.size(); i++) {
+            PassResult pass = new PassResult(names.get(i));
+            long start = System.nanoTime();
+            pass.sizeBefore = code.length;
+            EditBuffer.Layout layout = runPass(i, code, flow, pass, result);
+            code = layout.code;
+            flow = layout.flow();
+            pass.sizeAfter = code.length;
+            pass.nanos = System.nanoTime() - start;
+            result.passes.add(pass);
+        }
+        if (peephole) {
+            PeepholeOptimizer.Stats stats = new PeepholeOptimizer.Stats();
+            code = runPeephole(code, flow, stats, result);
+            flow = stats.flow;
+        }
+        result.code = code;
+        result.badJumpsOut = flow.badJumps();
+        return result;
+    }
+
+    //a round that does not validate ends the optimization, the stage is still applied up to it
+    private byte[] runPeephole(byte[] code, StackFlow flow, PeepholeOptimizer.Stats stats, Result result) {
+        PassResult pass = new PassResult(PEEPHOLE);
+        long start = System.nanoTime();
+        pass.sizeBefore = code.length;
+        pass.attempts = 1;
+        pass.seed = seed;
+        code = PeepholeOptimizer.Optimize(code, flow, options, stats);
+        result.offsets = result.offsets.then(stats.offsets);
+        result.peephole = stats;
+        pass.applied = true;
+        pass.problems = stats.problems;
+        pass.gasDelta = -stats.gasSaved;
+        pass.sizeAfter = code.length;
+        pass.nanos = System.nanoTime() - start;
+        result.passes.add(pass);
+        return code;
+    }
+
+    //the checkpoint is the empty edit log of a fresh buffer plus the charge log mark of the options
+    private EditBuffer.Layout runPass(int index, byte[] code, StackFlow flow, PassResult pass, Result result) {
+        EditBuffer buf = new EditBuffer(code, flow);
+        options.analyze(flow);
+        int mark = buf.mark();
+        int charged = options.mark();
+        for (int attempt = 0; attempt <= retries; attempt++) {
+            ObfuscationEvents.Pass event = new ObfuscationEvents.Pass();
+            event.begin();
+            COUNTERS.passAttempt(attempt);
+            pass.attempts = attempt + 1;
+            pass.seed = deriveSeed(seed, index, attempt);
+            options.setRandom(new Random(pass.seed));
+            List<String> problems;
+            EditBuffer.Layout layout = null;
+            try {
+                passes.get(index).run(buf, options);
+                ObfuscationEvents.Relocation relocation = new ObfuscationEvents.Relocation();
+                relocation.begin();
+                layout = passes.get(index).layout(buf);
+                relocation.pass = pass.name;
+                relocation.edits = buf.edits().size();
+                relocation.relocatedJumps = layout.relocatedJumps;
+                relocation.widenedPushes = layout.widenedPushes;
+                ObfuscationEvents.commit(relocation, contract, pass.seed, code.length, layout.code.length);
+                problems = ByteCodeValidator.validate(buf, layout);
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                problems = Collections.singletonList(e.toString());
+            }
+            event.pass = pass.name;
+            event.attempt = attempt;
+            event.applied = problems.isEmpty();
+            ObfuscationEvents.commit(event, contract, pass.seed, code.length, problems.isEmpty() ? layout.code.length : code.length);
+            if (problems.isEmpty()) {
+                options.relayout(buf, layout);
+                result.offsets = result.offsets.then(OffsetMap.of(buf, layout));
+                pass.applied = true;
+                pass.edits = buf.edits().size();
+                pass.insertedBytes = layout.insertedBytes;
+                pass.relocatedJumps = layout.relocatedJumps;
+                pass.sites = buf.edits().stream().filter(EditBuffer.Edit::isInsert).mapToInt(edit -> edit.offset).toArray();
+                pass.gasDelta = passes.get(index).gasDelta(buf, layout);
+                return layout;
+            }
+            pass.problems = problems;
+            buf.rollback(mark);
+            options.rollback(charged);
+        }
+        //keep the artifacts and the profile in step with the unchanged code
+        EditBuffer.Layout unchanged = buf.layout();
+        options.relayout(buf, unchanged);
+        return unchanged;
+    }
+
+    //tested
+    public static void main(String[] args) {
+        byte[] code = HexCodec.decode("6080604052348015600f57600080fd5b5060043610603c5760003560e01c80632e64cec114604157"
+                + "80636057361d14604d575b600080fd5b60476057565b005b60556058565b005b5b5600");
+        ObfuscationPipeline pipeline = standard(new PassOptions(), 42);
+        Result result = pipeline.run(code);
+        for (PassResult pass : result.passes) {
+            System.out.println(pass);
+        }
+        System.out.println(HexCodec.encode(result.code));
+        System.out.println(result.offsets.runs() + " runs, pc 60 -> " + result.offsets.lookup(60)
+                + " " + result.offsets.kindAt(60));
+    }
+}
@@ -0,0 +1,115 @@
+package obfuscationmethods;
+
+import utils.ByteCodeCleanAndRecovry;
+import utils.EditBuffer;
+import utils.HexCodec;
+import utils.Opcodes;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An insertion pass laid out over regions of the code at once. The pass itself runs as in the standard
+ * pipeline: it chooses its sites over the whole code with the pipeline's seeded random source and
+ * stamps them into one edit list. The code is cut into regions of whole basic blocks of about
+ * regionBytes each; once the new offsets are placed for the whole code, the original bytes and stamped
+ * snippets of every region are written, their slots filled and their jump targets relocated on the
+ * executor. The output is the standard pipeline's byte for byte, with any number of threads or none.
+ * Only the layout is parallel: site selection and validation still run over the whole code, so
+ * the gain is bounded by the layout's share of a pass (see main() for a 22KB contract).
+ */
+public class PartitionedPass implements ObfuscationPipeline.Pass {
+
+    public static final int DEFAULT_REGION_BYTES = 4096;
+
+    private final ObfuscationPipeline.Pass pass;
+    private final ExecutorService executor;
+    private final int regionBytes;
+
+    /**
+     * @param executor writes the regions, null to write them one after another on the calling thread
+     */
+    public PartitionedPass(ObfuscationPipeline.Pass pass, ExecutorService executor, int regionBytes) {
+        this.pass = pass;
+        this.executor = executor;
+        this.regionBytes = regionBytes;
+    }
+
+    /**
+     * Start offsets of regions of whole basic blocks: once a region has regionBytes, the next JUMPDEST starts a new one
+     */
+    public static int[] regions(byte[] code, int regionBytes) {
+        int[] starts = new int[1 + code.length / Math.max(1, regionBytes)];
+        int count = 1;
+        for (int pc = 0; pc < code.length; pc = Opcodes.next(code, pc)) {
+            if (pc - starts[count - 1] >= regionBytes && (code[pc] & 0xFF) == Opcodes.JUMPDEST) {
+                starts[count++] = pc;
+            }
+        }
+        return Arrays.copyOf(starts, count);
+    }
+
+    @Override
+    public void run(EditBuffer buf, PassOptions options) {
+        pass.run(buf, options);
+    }
+
+    @Override
+    public EditBuffer.Layout layout(EditBuffer buf) {
+        return buf.layout(regions(buf.original(), regionBytes), executor);
+    }
+
+    @Override
+    public long gasDelta(EditBuffer buf, EditBuffer.Layout layout) {
+        return pass.gasDelta(buf, layout);
+    }
+
+    //tested
+    public static void main(String[] args) {
+        byte[] runtime = ByteCodeCleanAndRecovry.byteCodeClean(HexCodec.decode(
+                "608060405234801561001057600080fd5b50610150806100206000396000f3fe608060405234801561001057600080fd5b50"
+                + "600436106100365760003560e01c80632e64cec11461003b5780636057361d14610059575b600080fd5b61004361007556"
+                + "5b60405161005091906100d9565b60405180910390f35b610073600480360381019061006e919061009d565b61007e565b"
+                + "005b60008054905090565b8060008190555050565b60008135905061009781610103565b92915050565b60006020828403"
+                + "12156100b3576100b26100fe565b5b60006100c184828501610088565b91505092915050565b6100d3816100f4565b8252"
+                + "5050565b60006020820190506100ee60008301846100ca565b92915050565b6000819050919050565b600080fd5b61010c"
+                + "816100f4565b811461011757600080fd5b5056fea2646970667358221220404e37f487a89a932dca5e77faaf6ca2de3b99"
+                + "1f93d230604b1b8daaef64766264736f6c63430008070033"));
+        String standard = HexCodec.encode(ObfuscationPipeline.standard(new PassOptions(), 42).run(runtime).code);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (ExecutorService e : new ExecutorService[]{null, executor}) {
+                ObfuscationPipeline.Result result = ObfuscationPipeline.partitioned(new PassOptions(), 42, e, 64).run(runtime);
+                System.out.println((e == null ? "sequential " : "parallel   ") + regions(runtime, 64).length + " regions, same as standard: "
+                        + HexCodec.encode(result.code).equals(standard));
+            }
+            //timing on a contract of the 24KB size limit: 2000 blocks JUMPDEST PUSH1 1 PUSH1 2 ADD POP PUSH2 next JUMP
+            StringBuilder large = new StringBuilder();
+            for (int i = 0; i < 2000; i++) {
+                large.append("5b600160020150 61").append(String.format("%04x", 11 * (i + 1))).append("56");
+            }
+            byte[] code = HexCodec.decode(large.append("5b00").toString().replace(" ", ""));
+            long[] nanos = new long[2];
+            for (int round = 0; round < 5; round++) {
+                long start = System.nanoTime();
+                byte[] expected = ObfuscationPipeline.standard(new PassOptions(), round).run(code).code;
+                long middle = System.nanoTime();
+                byte[] actual = ObfuscationPipeline.partitioned(new PassOptions(), round, executor, DEFAULT_REGION_BYTES).run(code).code;
+                long end = System.nanoTime();
+                if (!Arrays.equals(expected, actual)) {
+                    throw new IllegalStateException("partitioned output differs in round " + round);
+                }
+                //the first rounds warm up the JIT
+                if (round >= 2) {
+                    nanos[0] += middle - start;
+                    nanos[1] += end - middle;
+                }
+            }
+            System.out.println(code.length + " bytes, " + regions(code, DEFAULT_REGION_BYTES).length + " regions: standard "
+                    + nanos[0] / 3000000 + "ms, partitioned " + nanos[1] / 3000000 + "ms per run");
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
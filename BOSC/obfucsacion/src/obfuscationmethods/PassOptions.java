@@ -0,0 +1,371 @@
+package obfuscationmethods;
+
+import utils.DispatcherAnalyzer;
+import utils.EditBuffer;
+import utils.ExecutionProfile;
+import utils.InsertIndex;
+import utils.Opcodes;
+import utils.StackFlow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Settings shared by the obfuscation methods: the random source and the selectors whose functions
+ * are (include) or are not (exclude) obfuscated.
+ * Hot external functions such as transfer (0xa9059cbb) and balanceOf (0x70a08231) are usually excluded,
+ * the dispatcher is then left alone as well since every call runs through it.
+ * With an execution profile insertion sites are biased toward cold blocks, and a hot block gets at
+ * most maxGasPerHotBlock of obfuscation gas.
+ * A region restricts the passes to some offsets of the code, e.g. the blocks that changed since the
+ * last obfuscation; like the profile it is carried over to the next code by relayout().
+ * Offsets up to the last untracked JUMPDEST (StackFlow.lastUntrackedJumpdest()) are never eligible,
+ * anything changed there would move it.
+ */
+public class PassOptions {
+
+    private Random random;
+    private final Set<String> includeSelectors = new LinkedHashSet<>();
+    private final Set<String> excludeSelectors = new LinkedHashSet<>();
+
+    //blocks executed at least this often are hot
+    public static final long DEFAULT_HOT_THRESHOLD = 1;
+    public static final int DEFAULT_MAX_GAS_PER_HOT_BLOCK = 20;
+
+    private ExecutionProfile profile;
+    private long hotThreshold = DEFAULT_HOT_THRESHOLD;
+    private int maxGasPerHotBlock = DEFAULT_MAX_GAS_PER_HOT_BLOCK;
+
+    //{offset, gas} charged since the last relayout, undone by rollback
+    private final List<int[]> charges = new ArrayList<>();
+
+    //offsets of obfuscation code in artifactCode, the code the last pass was laid out to
+    private byte[] artifactCode;
+    private boolean[] artifacts;
+
+    //eligible offsets of the code analyzed last, passes run one after another on new code
+    private byte[] analyzedCode;
+    private boolean[] eligible;
+
+    //offsets of regionCode the passes may touch, null for all
+    private byte[] regionCode;
+    private boolean[] region;
+    //eligible and in the region
+    private byte[] restrictedCode;
+    private boolean[] restricted;
+
+    //offsets of pinnedCode below pinnedEnd must not change
+    private byte[] pinnedCode;
+    private int pinnedEnd;
+
+    public PassOptions() {
+        this(new Random());
+    }
+
+    public PassOptions(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * Options with the random source, selectors, profile and gas settings of these, but no region and
+     * nothing of the code these were used on: a run can restrict and relayout the copy while these stay
+     * as they are. The profile itself is shared.
+     */
+    public synchronized PassOptions copy() {
+        PassOptions copy = new PassOptions(random);
+        copy.includeSelectors.addAll(includeSelectors);
+        copy.excludeSelectors.addAll(excludeSelectors);
+        copy.profile = profile;
+        copy.hotThreshold = hotThreshold;
+        copy.maxGasPerHotBlock = maxGasPerHotBlock;
+        return copy;
+    }
+
+    public Random getRandom() {
+        return random;
+    }
+
+    public void setRandom(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * Only obfuscate the functions of these selectors ("0xa9059cbb" or "a9059cbb"), code they share
+     * with other selectors and the dispatcher stay unchanged
+     */
+    public PassOptions include(String... selectors) {
+        for (String selector : selectors) {
+            includeSelectors.add(DispatcherAnalyzer.normalizeSelector(selector));
+        }
+        analyzedCode = null;
+        restrictedCode = null;
+        return this;
+    }
+
+    /**
+     * Never obfuscate the functions of these selectors
+     */
+    public PassOptions exclude(String... selectors) {
+        for (String selector : selectors) {
+            excludeSelectors.add(DispatcherAnalyzer.normalizeSelector(selector));
+        }
+        analyzedCode = null;
+        restrictedCode = null;
+        return this;
+    }
+
+    public Set<String> getIncludeSelectors() {
+        return Collections.unmodifiableSet(includeSelectors);
+    }
+
+    public Set<String> getExcludeSelectors() {
+        return Collections.unmodifiableSet(excludeSelectors);
+    }
+
+    public boolean isSelective() {
+        return !includeSelectors.isEmpty() || !excludeSelectors.isEmpty();
+    }
+
+    /**
+     * Only let the passes touch these offsets of code (length code.length + 1), null to lift the restriction
+     */
+    public synchronized PassOptions restrict(byte[] code, boolean[] offsets) {
+        regionCode = offsets == null ? null : code;
+        region = offsets;
+        restrictedCode = null;
+        return this;
+    }
+
+    /**
+     * Offsets of the region of the code, null without a region
+     */
+    public synchronized boolean[] region(byte[] code) {
+        if (region != null && regionCode != code) {
+            throw new IllegalStateException("the region describes other code, relayout() after each pass");
+        }
+        return region;
+    }
+
+    /**
+     * Use the StackFlow a caller already ran over the code for its untracked JUMPDESTs, otherwise
+     * eligibleOffsets() runs one of its own
+     */
+    public synchronized PassOptions analyze(StackFlow flow) {
+        if (pinnedCode != flow.code()) {
+            pinnedCode = flow.code();
+            pinnedEnd = flow.lastUntrackedJumpdest() + 1;
+            restrictedCode = null;
+        }
+        return this;
+    }
+
+    /**
+     * Offsets of the code a pass may insert at or patch, length code.length + 1
+     * @return null if every offset is eligible
+     */
+    public synchronized boolean[] eligibleOffsets(byte[] code) {
+        boolean[] selected = null;
+        if (isSelective()) {
+            if (analyzedCode != code) {
+                eligible = new DispatcherAnalyzer(code).eligibleOffsets(includeSelectors, excludeSelectors);
+                analyzedCode = code;
+            }
+            selected = eligible;
+        }
+        boolean[] offsets = region(code);
+        if (pinnedCode != code) {
+            analyze(new StackFlow(code));
+        }
+        if (pinnedEnd == 0 && (offsets == null || selected == null)) {
+            return offsets == null ? selected : offsets;
+        }
+        if (restrictedCode != code) {
+            restricted = new boolean[code.length + 1];
+            for (int pc = pinnedEnd; pc < restricted.length; pc++) {
+                restricted[pc] = (offsets == null || offsets[pc]) && (selected == null || selected[pc]);
+            }
+            restrictedCode = code;
+        }
+        return restricted;
+    }
+
+    /**
+     * Whether a pass may touch the offset
+     */
+    public boolean isEligible(byte[] code, int offset) {
+        boolean[] offsets = eligibleOffsets(code);
+        return offsets == null || offsets[offset];
+    }
+
+    public ExecutionProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Profile of the code the next pass runs on, null for uniform site choice
+     */
+    public PassOptions setProfile(ExecutionProfile profile) {
+        this.profile = profile;
+        return this;
+    }
+
+    public PassOptions setHotThreshold(long hotThreshold) {
+        this.hotThreshold = hotThreshold;
+        return this;
+    }
+
+    public PassOptions setMaxGasPerHotBlock(int maxGasPerHotBlock) {
+        this.maxGasPerHotBlock = maxGasPerHotBlock;
+        return this;
+    }
+
+    public int getMaxGasPerHotBlock() {
+        return maxGasPerHotBlock;
+    }
+
+    /**
+     * Site weights for obfuscation code costing gas per execution: cold blocks 1, hot blocks
+     * 1 / (1 + executions), 0 once the gas cap of a hot block would be exceeded
+     * @return null without a profile
+     */
+    public double[] siteWeights(byte[] code, int gas) {
+        if (profile == null) {
+            return null;
+        }
+        checkProfile(code);
+        double[] weights = new double[code.length + 1];
+        for (int pc = 0; pc <= code.length; pc++) {
+            long executions = profile.hotness(pc);
+            if (executions < hotThreshold) {
+                weights[pc] = 1;
+            } else if (profile.addedGas(pc) + gas <= maxGasPerHotBlock) {
+                weights[pc] = 1.0 / (1 + executions);
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * Pick an eligible insertion site for obfuscation code costing gas and charge the gas to its block
+     * @return offset of the site, -1 if there is none
+     */
+    public int insertIndex(byte[] code, int gas) {
+        int index = InsertIndex.insertIndex(code, eligibleOffsets(code), siteWeights(code, gas), random);
+        if (index >= 0) {
+            charge(code, index, gas);
+        }
+        return index;
+    }
+
+    /**
+     * Record gas added at the offset, counts against the cap of a hot block
+     */
+    public void charge(byte[] code, int offset, int gas) {
+        if (profile != null) {
+            checkProfile(code);
+            profile.addGas(offset, gas);
+            charges.add(new int[]{offset, gas});
+        }
+    }
+
+    /**
+     * Position in the charge log of the current pass, see EditBuffer.mark()
+     */
+    public int mark() {
+        return charges.size();
+    }
+
+    /**
+     * Undo the gas charged after mark, together with EditBuffer.rollback() when a pass is retried
+     */
+    public void rollback(int mark) {
+        for (int i = charges.size() - 1; i >= mark; i--) {
+            profile.addGas(charges.get(i)[0], -charges.get(i)[1]);
+        }
+        charges.subList(mark, charges.size()).clear();
+    }
+
+    /**
+     * Carry the profile and the obfuscation code offsets over to the code a pass was laid out to,
+     * call after every pass. The code of the first pass counts as free of obfuscation code.
+     */
+    public void relayout(EditBuffer buf, EditBuffer.Layout layout) {
+        if (profile != null) {
+            profile = profile.remap(buf, layout);
+        }
+        charges.clear();
+        byte[] code = buf.original();
+        boolean[] previous = artifactCode == code ? artifacts : new boolean[code.length];
+        boolean[] next = new boolean[layout.code.length];
+        for (int pc = 0; pc < code.length; pc++) {
+            if (previous[pc] && layout.newOffsets[pc] < next.length) {
+                next[layout.newOffsets[pc]] = true;
+            }
+        }
+        List<EditBuffer.Edit> edits = buf.edits();
+        for (int e = 0; e < edits.size(); e++) {
+            EditBuffer.Edit edit = edits.get(e);
+            if (edit.kind == EditBuffer.Kind.INSERT) {
+                Arrays.fill(next, layout.editStarts[e], layout.editStarts[e] + edit.template.length(), true);
+            } else if (edit.kind == EditBuffer.Kind.PATCH) {
+                next[layout.editStarts[e]] = true;
+            }
+        }
+        //immediates belong to their PUSH
+        for (int pc = 0; pc < next.length; pc = Opcodes.next(layout.code, pc)) {
+            if (next[pc]) {
+                Arrays.fill(next, pc, Math.min(Opcodes.next(layout.code, pc), next.length), true);
+            }
+        }
+        artifactCode = layout.code;
+        artifacts = next;
+        if (region != null) {
+            restrict(layout.code, relayoutRegion(buf, layout));
+        }
+    }
+
+    //the region over the laid out code: original bytes and the code inserted in front of them keep their offset's state
+    private boolean[] relayoutRegion(EditBuffer buf, EditBuffer.Layout layout) {
+        boolean[] previous = region(buf.original());
+        byte[] code = buf.original();
+        boolean[] next = new boolean[layout.code.length + 1];
+        for (int pc = 0; pc < code.length; pc = Opcodes.next(code, pc)) {
+            if (previous[pc]) {
+                next[layout.newOffsets[pc]] = true;
+            }
+        }
+        next[layout.code.length] = previous[code.length];
+        List<EditBuffer.Edit> edits = buf.edits();
+        for (int e = 0; e < edits.size(); e++) {
+            EditBuffer.Edit edit = edits.get(e);
+            if (edit.isInsert() && previous[edit.offset]) {
+                Arrays.fill(next, layout.editStarts[e], layout.editStarts[e] + edit.template.length(), true);
+            }
+        }
+        for (int pc = 0; pc < layout.code.length; pc = Opcodes.next(layout.code, pc)) {
+            if (next[pc]) {
+                Arrays.fill(next, pc, Math.min(Opcodes.next(layout.code, pc), layout.code.length), true);
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Offsets of code that belong to obfuscation code (stamped snippets and patched instructions)
+     * @return null if the code is not the one the last pass was laid out to
+     */
+    public boolean[] artifacts(byte[] code) {
+        return artifactCode == code ? artifacts : null;
+    }
+
+    private void checkProfile(byte[] code) {
+        if (profile.code() != code) {
+            throw new IllegalStateException("the profile describes other code, relayout() after each pass");
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package obfuscationmethods;
+
+import utils.ByteCodeValidator;
+import utils.ControlFlowGraph;
+import utils.EditBuffer;
+import utils.HexCodec;
+import utils.OffsetMap;
+import utils.Opcodes;
+import utils.SnippetTemplates;
+import utils.StackFlow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Final optimization pass over obfuscated code, wins back size and gas the passes left behind:
+ *   PUSH/DUP directly followed by POP is removed
+ *   dead blocks (not reached by fallthrough and whose JUMPDEST is never pushed) are removed
+ *   jumps to a JUMPDEST PUSH JUMP trampoline are threaded to the final target
+ *   relocated PUSHes are narrowed to the width their target needs
+ * Obfuscation code (PassOptions.artifacts) is never touched, neither is anything a jump of
+ * obfuscation code relies on, nor the code up to the last untracked JUMPDEST (it must not move).
+ * Dead code is kept when the code reads itself with CODECOPY.
+ * Every round is validated, the optimization stops at the last round that is valid.
+ * ObfuscationPipeline runs it after the last pass, see ObfuscationPipeline.addPeephole().
+ */
+public class PeepholeOptimizer {
+
+    //longest trampoline chain followed by one jump
+    private static final int MAX_HOPS = 8;
+    private static final int MAX_ROUNDS = 8;
+
+    /**
+     * What one or more rounds changed
+     */
+    public static final class Stats {
+        public int pushPops;
+        public int deadInstructions;
+        public int threadedJumps;
+        public int narrowedPushes;
+        public int savedBytes;
+        //static gas taken off executed paths: removed push/pops and trampolines jumped over,
+        //dead code never ran and saves none
+        public long gasSaved;
+        //optimized offset -> offset of the code given to Optimize
+        public OffsetMap offsets;
+        //problems of a round that did not validate and was dropped
+        public List<String> problems = Collections.emptyList();
+        //StackFlow of the optimized code
+        public StackFlow flow;
+
+        boolean changed() {
+            return pushPops + deadInstructions + threadedJumps > 0;
+        }
+
+        void add(Stats other) {
+            pushPops += other.pushPops;
+            deadInstructions += other.deadInstructions;
+            threadedJumps += other.threadedJumps;
+            narrowedPushes += other.narrowedPushes;
+            savedBytes += other.savedBytes;
+            gasSaved += other.gasSaved;
+        }
+
+        @Override
+        public String toString() {
+            return "push/pop:" + pushPops + " dead:" + deadInstructions + " threaded:" + threadedJumps
+                    + " narrowed:" + narrowedPushes + " saved bytes:" + savedBytes + " saved gas:" + gasSaved;
+        }
+    }
+
+    /**
+     * Optimize until nothing changes, then narrow. Run it after the last obfuscation pass, the
+     * passes must have been laid out with options.relayout() so the obfuscation code is known.
+     * @return the optimized code, options are relayouted to it and stats.offsets maps it back to code
+     */
+    public static byte[] Optimize(byte[] code, PassOptions options, Stats stats) {
+        return Optimize(code, new StackFlow(code), options, stats);
+    }
+
+    /**
+     * Optimize code whose StackFlow already ran, every round reuses the analysis its validation ran
+     */
+    public static byte[] Optimize(byte[] code, StackFlow flow, PassOptions options, Stats stats) {
+        stats.offsets = OffsetMap.identity(code.length);
+        stats.flow = flow;
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            EditBuffer buf = new EditBuffer(code, stats.flow);
+            Stats step = Optimize(buf, options);
+            if (!step.changed()) {
+                break;
+            }
+            EditBuffer.Layout optimized = layout(buf, options, step, stats);
+            if (optimized == null) {
+                return code;
+            }
+            code = optimized.code;
+            stats.flow = optimized.flow();
+        }
+        EditBuffer buf = new EditBuffer(code, stats.flow);
+        Narrow(buf, options);
+        EditBuffer.Layout narrowed = layout(buf, options, new Stats(), stats);
+        if (narrowed == null) {
+            return code;
+        }
+        stats.flow = narrowed.flow();
+        return narrowed.code;
+    }
+
+    //lay out a round and add it to stats, null if it does not validate
+    private static EditBuffer.Layout layout(EditBuffer buf, PassOptions options, Stats step, Stats stats) {
+        EditBuffer.Layout layout = buf.layout();
+        List<String> problems = ByteCodeValidator.validate(buf, layout);
+        if (!problems.isEmpty()) {
+            stats.problems = problems;
+            return null;
+        }
+        options.relayout(buf, layout);
+        step.narrowedPushes += layout.narrowedPushes;
+        step.savedBytes += buf.original().length - layout.code.length;
+        stats.add(step);
+        stats.offsets = stats.offsets.then(OffsetMap.of(buf, layout));
+        return layout;
+    }
+
+    /**
+     * One round of push/pop removal, dead code removal and jump threading
+     */
+    public static Stats Optimize(EditBuffer buf, PassOptions options) {
+        byte[] code = buf.original();
+        boolean[] artifacts = artifacts(buf, options);
+        boolean[] deleted = new boolean[code.length];
+        Stats stats = new Stats();
+        removeDeadCode(buf, artifacts, deleted, stats);
+        removePushPops(buf, artifacts, deleted, stats);
+        threadJumps(buf, artifacts, deleted, stats);
+        return stats;
+    }
+
+    /**
+     * Let every relocated PUSH outside obfuscation code take the fewest bytes its target needs
+     */
+    public static void Narrow(EditBuffer buf, PassOptions options) {
+        byte[] code = buf.original();
+        boolean[] artifacts = artifacts(buf, options);
+        for (int pc = 0; pc < code.length; pc = Opcodes.next(code, pc)) {
+            if (!artifacts[pc] && buf.jumpTarget(pc) >= 0 && Opcodes.immediateSize(code[pc] & 0xFF) > 1) {
+                buf.narrow(pc);
+            }
+        }
+    }
+
+    //obfuscation code and the code up to the last untracked JUMPDEST
+    private static boolean[] artifacts(EditBuffer buf, PassOptions options) {
+        boolean[] artifacts = options.artifacts(buf.original());
+        if (artifacts == null) {
+            throw new IllegalStateException("obfuscation code of this code is unknown, relayout() after each pass");
+        }
+        int pinned = buf.flow().lastUntrackedJumpdest();
+        if (pinned >= 0) {
+            artifacts = artifacts.clone();
+            Arrays.fill(artifacts, 0, pinned + 1, true);
+        }
+        return artifacts;
+    }
+
+    private static void removeDeadCode(EditBuffer buf, boolean[] artifacts, boolean[] deleted, Stats stats) {
+        byte[] code = buf.original();
+        boolean[] pushed = new boolean[code.length];
+        for (int pc = 0; pc < code.length; pc = Opcodes.next(code, pc)) {
+            int op = code[pc] & 0xFF;
+            if (op == Opcodes.CODECOPY) {
+                return;
+            }
+            if (Opcodes.isPush(op) && Opcodes.immediateSize(op) <= 4) {
+                long value = Opcodes.pushValue(code, pc);
+                if (value < code.length) {
+                    pushed[(int) value] = true;
+                }
+            }
+        }
+        ControlFlowGraph cfg = buf.flow().cfg();
+        List<Integer> roots = new ArrayList<>();
+        for (ControlFlowGraph.Block block : cfg.blocks()) {
+            if (block.index == 0 || (code[block.start] & 0xFF) == Opcodes.JUMPDEST && pushed[block.start]) {
+                roots.add(block.index);
+            }
+        }
+        boolean[] reached = reach(cfg, roots);
+        for (ControlFlowGraph.Block block : cfg.blocks()) {
+            if (reached[block.index]) {
+                continue;
+            }
+            for (int pc = block.start; pc < block.end; pc = Opcodes.next(code, pc)) {
+                if (!artifacts[pc]) {
+                    buf.delete(pc);
+                    deleted[pc] = true;
+                    stats.deadInstructions++;
+                }
+            }
+        }
+    }
+
+    //blocks reached from the roots through fallthrough and static jumps
+    private static boolean[] reach(ControlFlowGraph cfg, List<Integer> roots) {
+        boolean[] seen = new boolean[cfg.blocks().size()];
+        List<Integer> queue = new ArrayList<>();
+        for (int root : roots) {
+            seen[root] = true;
+            queue.add(root);
+        }
+        for (int i = 0; i < queue.size(); i++) {
+            for (int next : cfg.blocks().get(queue.get(i)).successors) {
+                if (!seen[next]) {
+                    seen[next] = true;
+                    queue.add(next);
+                }
+            }
+        }
+        return seen;
+    }
+
+    private static void removePushPops(EditBuffer buf, boolean[] artifacts, boolean[] deleted, Stats stats) {
+        byte[] code = buf.original();
+        int pc = 0;
+        while (pc < code.length) {
+            int op = code[pc] & 0xFF;
+            int next = Opcodes.next(code, pc);
+            boolean pushes = op == Opcodes.PUSH0 || Opcodes.isPush(op) && buf.jumpTarget(pc) < 0
+                    || op >= Opcodes.DUP1 && op < Opcodes.SWAP1;
+            if (pushes && next < code.length && (code[next] & 0xFF) == Opcodes.POP
+                    && !artifacts[pc] && !artifacts[next] && !deleted[pc] && !deleted[next]) {
+                buf.delete(pc);
+                buf.delete(next);
+                deleted[pc] = deleted[next] = true;
+                stats.pushPops++;
+                stats.gasSaved += Opcodes.baseGas(op) + Opcodes.baseGas(Opcodes.POP);
+                next = Opcodes.next(code, next);
+            }
+            pc = next;
+        }
+    }
+
+    private static void threadJumps(EditBuffer buf, boolean[] artifacts, boolean[] deleted, Stats stats) {
+        byte[] code = buf.original();
+        for (int pc = 0; pc < code.length; pc = Opcodes.next(code, pc)) {
+            int next = Opcodes.next(code, pc);
+            if (artifacts[pc] || deleted[pc] || buf.jumpTarget(pc) < 0 || next >= code.length || artifacts[next]
+                    || (code[next] & 0xFF) != Opcodes.JUMP && (code[next] & 0xFF) != Opcodes.JUMPI) {
+                continue;
+            }
+            int target = buf.jumpTarget(pc);
+            int hops = 0;
+            int hop;
+            long gas = 0;
+            while (hops < MAX_HOPS && (hop = trampoline(buf, artifacts, target)) >= 0 && hop != target) {
+                //JUMPDEST PUSH JUMP of the trampoline
+                gas += Opcodes.baseGas(Opcodes.JUMPDEST) + Opcodes.baseGas(code[target + 1] & 0xFF) + Opcodes.baseGas(Opcodes.JUMP);
+                target = hop;
+                hops++;
+            }
+            if (target != buf.jumpTarget(pc)) {
+                buf.retarget(pc, target);
+                stats.threadedJumps++;
+                stats.gasSaved += gas;
+            }
+        }
+    }
+
+    //final target of a JUMPDEST PUSH target JUMP trampoline outside obfuscation code, -1 if target is none
+    private static int trampoline(EditBuffer buf, boolean[] artifacts, int target) {
+        byte[] code = buf.original();
+        if ((code[target] & 0xFF) != Opcodes.JUMPDEST || artifacts[target]) {
+            return -1;
+        }
+        int push = target + 1;
+        if (push >= code.length || artifacts[push] || buf.jumpTarget(push) < 0) {
+            return -1;
+        }
+        int jump = Opcodes.next(code, push);
+        if (jump >= code.length || artifacts[jump] || (code[jump] & 0xFF) != Opcodes.JUMP) {
+            return -1;
+        }
+        return buf.jumpTarget(push);
+    }
+
+    //tested
+    public static void main(String[] args) {
+        //PUSH1 4 JUMP | STOP | JUMPDEST PUSH1 8 JUMP | JUMPDEST PUSH1 1 POP STOP
+        byte[] code = HexCodec.decode("600456005b6008565b60015000");
+        PassOptions options = new PassOptions(new Random(1));
+        EditBuffer buf = new EditBuffer(code);
+        buf.stamp(code.length - 1, SnippetTemplates.get(SnippetTemplates.FLOWER + ".pushpop"), options.getRandom());
+        EditBuffer.Layout layout = buf.layout();
+        options.relayout(buf, layout);
+        Stats stats = new Stats();
+        byte[] optimized = Optimize(layout.code, options, stats);
+        System.out.println(HexCodec.encode(layout.code) + " -> " + HexCodec.encode(optimized) + " " + stats);
+    }
+}
@@ -7,11 +7,7 @@ import static utils.CodeStingToArray.ToArray;
  */
 public class ArrayToCodeString {
     public static String toString(String[] bytecode){
-        StringBuffer sb = new StringBuffer();
-        for(int i = 0; i < bytecode.length; i++){
-            sb. append(bytecode[i].trim());
-        }
-        String str = sb.toString();
+        String str = HexCodec.encode(bytecode);
         String con = str.substring(0, str.length() - 1);
         return con;
     }
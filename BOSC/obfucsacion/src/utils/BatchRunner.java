@@ -0,0 +1,554 @@
+package utils;
+
+import cn.hutool.json.JSONArray;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import obfuscationmethods.ObfuscationPipeline;
+import obfuscationmethods.PartitionedPass;
+import obfuscationmethods.PassOptions;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batch obfuscation of a dataset directory or packed corpus (ByteCodeCorpus), sharded over any
+ * number of worker processes that share the output directory (one host, or nodes on a shared filesystem).
+ *
+ * Output directory:
+ *   leases/name.lease   a worker claims a contract by creating its lease (CREATE_NEW is atomic) and
+ *                       renews it every heartbeat while the lease still holds its id; a lease not renewed
+ *                       for the lease time is expired, a worker takes it over by moving it to a tombstone
+ *                       of its own (ATOMIC_MOVE, only one worker wins, and only if its file time is still
+ *                       the expired one) before creating it again; a fresh lease moved by a racing
+ *                       takeover is linked back, the heartbeat drops a lease only when it holds another id
+ *                       or is gone twice in a row
+ *   done/name           the RunReport of a finished contract, written atomically before the lease is released
+ *   obfuscated/name     the obfuscated bytecode, name.map its OffsetMap
+ *   workers/id.json     summary of one worker
+ *   batch.json          merged summary with the RunReport aggregate, contracts.jsonl the reports of all contracts
+ * A contract that fails with any exception is recorded as failed in done/ and its lease released.
+ * Worker ids are pid@host (spawned workers pid@host.i), unique over the nodes sharing the directory.
+ * The seed of a contract only depends on the batch seed and its name, so a contract run twice (its
+ * holder stalled past the lease time but did not die) gives the same output and the duplicate is harmless.
+ * Lease expiry compares file times with the local clock, keep the lease time well above the clock skew of the nodes.
+ * Every stage is a JFR event (ObfuscationEvents), throughput and the contracts not done yet (queue depth)
+ * are in the MBean of ObfuscationCounters.
+ *
+ * usage: BatchRunner [datasetDir | corpusFile] [outDir] [--worker id] [--seed n] [--lease millis] [--spawn n] [--threads n]
+ *        BatchRunner merge outDir
+ * Without --spawn the process is one worker; --spawn n starts n worker JVMs and merges their summaries.
+ * --threads n lays out the insertion passes of a contract over regions of its code on n threads
+ * (ObfuscationPipeline.partitioned), the output is the standard pipeline's for any n.
+ */
+public class BatchRunner {
+
+    public static final long DEFAULT_SEED = 20250101;
+    public static final long DEFAULT_LEASE_MILLIS = 10000;
+    //wait between scans for contracts other workers still hold
+    private static final long POLL_MILLIS = 200;
+    private static final ObfuscationCounters COUNTERS = ObfuscationCounters.get();
+    private static final Log LOG = Log.get(BatchRunner.class);
+
+    private final Path input;
+    private final Path out;
+    private final String worker;
+    private final long seed;
+    private long leaseMillis = DEFAULT_LEASE_MILLIS;
+    //runs the regions of the partitioned pipeline, null for the standard pipeline
+    private ExecutorService executor;
+
+    private final Path leases;
+    private final Path done;
+    private final Path obfuscated;
+    private final Path workers;
+    //leases this worker holds, renewed by the heartbeat
+    private final Set<Path> held = ConcurrentHashMap.newKeySet();
+    //held leases the last heartbeat did not find
+    private final Set<Path> missing = ConcurrentHashMap.newKeySet();
+
+    private ByteCodeCorpus corpus;
+
+    //summary of this worker
+    private int contracts;
+    private int failed;
+    private int expired;
+    //written by the heartbeat thread
+    private volatile int lost;
+    private final Map<String, Integer> skippedPasses = new TreeMap<>();
+    private Log.Progress progress;
+
+    public BatchRunner(Path input, Path out, String worker, long seed) {
+        this.input = input;
+        this.out = out;
+        this.worker = worker;
+        this.seed = seed;
+        this.leases = out.resolve("leases");
+        this.done = out.resolve("done");
+        this.obfuscated = out.resolve("obfuscated");
+        this.workers = out.resolve("workers");
+    }
+
+    /**
+     * A lease not renewed for this long is expired, the heartbeat renews every third of it
+     */
+    public BatchRunner setLeaseMillis(long leaseMillis) {
+        this.leaseMillis = leaseMillis;
+        return this;
+    }
+
+    /**
+     * Obfuscate with ObfuscationPipeline.partitioned, the regions of a contract run on the executor
+     */
+    public BatchRunner setExecutor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Id of this process, pid@host
+     */
+    public static String defaultWorker() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "localhost";
+        }
+        return (ProcessHandle.current().pid() + "@" + host).replaceAll("[^A-Za-z0-9@._-]", "_");
+    }
+
+    /**
+     * Seed of a contract of a batch
+     */
+    public static long seed(long batchSeed, String name) {
+        return ObfuscationPipeline.deriveSeed(batchSeed, name.hashCode(), 0);
+    }
+
+    /**
+     * Work until every contract is done, contracts leased by live workers are waited for
+     * @return the summary of this worker
+     */
+    public JSONObject run() throws IOException, InterruptedException {
+        for (Path dir : new Path[]{leases, done, obfuscated, workers}) {
+            Files.createDirectories(dir);
+        }
+        List<String> names = names();
+        long start = System.currentTimeMillis();
+        long heartbeat = Math.max(1, leaseMillis / 3);
+        ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lease-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        renewer.scheduleAtFixedRate(this::renew, heartbeat, heartbeat, TimeUnit.MILLISECONDS);
+        int remaining = 0;
+        for (String name : names) {
+            remaining += Files.exists(done.resolve(name)) ? 0 : 1;
+        }
+        progress = Log.Progress.start(worker, remaining);
+        try {
+            //workers start at different contracts so they rarely race for the same lease
+            int first = names.isEmpty() ? 0 : Math.floorMod(worker.hashCode(), names.size());
+            boolean pending = true;
+            while (pending) {
+                pending = false;
+                int waiting = 0;
+                for (String name : names) {
+                    waiting += Files.exists(done.resolve(name)) ? 0 : 1;
+                }
+                COUNTERS.setQueueDepth(waiting);
+                for (int k = 0; k < names.size(); k++) {
+                    String name = names.get((first + k) % names.size());
+                    if (Files.exists(done.resolve(name))) {
+                        continue;
+                    }
+                    COUNTERS.setQueueDepth(waiting--);
+                    Path lease = claim(name);
+                    if (lease == null) {
+                        pending = true;
+                        continue;
+                    }
+                    try {
+                        //another worker may have finished it between the check and the claim
+                        if (!Files.exists(done.resolve(name))) {
+                            process(name);
+                        }
+                    } finally {
+                        release(lease);
+                    }
+                }
+                if (pending) {
+                    Thread.sleep(Math.min(POLL_MILLIS, heartbeat));
+                }
+            }
+        } finally {
+            renewer.shutdownNow();
+            progress.finish();
+        }
+        JSONObject summary = new JSONObject(true);
+        summary.set("worker", worker);
+        summary.set("contracts", contracts);
+        summary.set("failed", failed);
+        summary.set("expiredLeasesClaimed", expired);
+        summary.set("leasesLost", lost);
+        summary.set("skippedPasses", new JSONObject(skippedPasses));
+        summary.set("millis", System.currentTimeMillis() - start);
+        writeAtomically(workers.resolve(worker + ".json"), summary.toStringPretty().getBytes(StandardCharsets.UTF_8));
+        return summary;
+    }
+
+    private List<String> names() throws IOException {
+        if (!Files.isDirectory(input)) {
+            corpus = ByteCodeCorpus.open(input);
+            return corpus.names();
+        }
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(input, "*.hex")) {
+            for (Path file : stream) {
+                names.add(file.getFileName().toString());
+            }
+        }
+        names.sort(null);
+        return names;
+    }
+
+    private byte[] read(String name) throws IOException {
+        return corpus != null ? corpus.get(name).bytes() : ByteCodeInput.readBytecode(input.resolve(name).toString());
+    }
+
+    /**
+     * @return the lease, null if a live worker holds it
+     */
+    private Path claim(String name) throws IOException {
+        Path lease = leases.resolve(name + ".lease");
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try {
+                Files.write(lease, worker.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.WRITE);
+                held.add(lease);
+                return lease;
+            } catch (FileAlreadyExistsException e) {
+                //its holder stopped renewing: take the lease over and race the other workers for a new one,
+                //a lease released meanwhile is simply created again
+                FileTime seen = modified(lease);
+                if (!expired(seen) || (seen != null && !takeOver(lease, seen))) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    //move the expired lease last renewed at seen out of the way, of the workers racing for it only the one
+    //whose move succeeds may claim it
+    private boolean takeOver(Path lease, FileTime seen) throws IOException {
+        if (!seen.equals(modified(lease))) {
+            //renewed or claimed anew since it was found expired: live, leave it
+            return false;
+        }
+        Path tombstone = lease.resolveSibling(lease.getFileName() + "." + worker + "." + System.nanoTime() + ".stale");
+        try {
+            Files.move(lease, tombstone, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            //another worker moved it first
+            return false;
+        }
+        if (!seen.equals(modified(tombstone))) {
+            //another worker took it over and claimed it anew between the check and the move: hand the new
+            //lease back (a link never replaces a lease claimed yet again), its holder's heartbeat tolerates the gap
+            try {
+                Files.createLink(lease, tombstone);
+            } catch (FileAlreadyExistsException ignored) {
+                //claimed yet again, the heartbeat of the holder finds another id
+            } catch (UnsupportedOperationException e) {
+                try {
+                    Files.move(tombstone, lease);
+                    return false;
+                } catch (FileAlreadyExistsException ignored) {
+                    //claimed yet again
+                }
+            }
+            Files.delete(tombstone);
+            return false;
+        }
+        Files.delete(tombstone);
+        expired++;
+        return true;
+    }
+
+    //time of the last renewal, null if the lease is gone
+    private static FileTime modified(Path lease) throws IOException {
+        try {
+            return Files.getLastModifiedTime(lease);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private boolean expired(FileTime modified) {
+        return modified == null || System.currentTimeMillis() - modified.toMillis() > leaseMillis;
+    }
+
+    //heartbeat: touch every held lease, a lease that holds another id or is gone at two heartbeats in a row
+    //was taken over after an expiry (a takeover racing a fresh claim moves the lease away for a moment)
+    private void renew() {
+        FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+        for (Path lease : held) {
+            try {
+                if (!worker.equals(new String(Files.readAllBytes(lease), StandardCharsets.UTF_8))) {
+                    drop(lease);
+                    continue;
+                }
+                Files.setLastModifiedTime(lease, now);
+                missing.remove(lease);
+            } catch (NoSuchFileException e) {
+                if (!missing.add(lease)) {
+                    drop(lease);
+                }
+            } catch (IOException e) {
+                drop(lease);
+            }
+        }
+    }
+
+    private void drop(Path lease) {
+        held.remove(lease);
+        missing.remove(lease);
+        lost++;
+    }
+
+    private void release(Path lease) throws IOException {
+        missing.remove(lease);
+        if (held.remove(lease)) {
+            try {
+                //do not drop the lease of a worker that took it over
+                if (worker.equals(new String(Files.readAllBytes(lease), StandardCharsets.UTF_8))) {
+                    Files.delete(lease);
+                }
+            } catch (NoSuchFileException ignored) {
+                //taken over and already released
+            }
+        }
+    }
+
+    private void process(String name) throws IOException {
+        long contractSeed = seed(seed, name);
+        RunReport report = new RunReport(name, contractSeed);
+        int bytesIn = 0;
+        boolean failed = false;
+        try {
+            long start = System.nanoTime();
+            ObfuscationEvents.Decode decode = new ObfuscationEvents.Decode();
+            decode.begin();
+            byte[] bytecode = read(name);
+            ObfuscationEvents.commit(decode, name, contractSeed, bytecode.length, bytecode.length);
+            report.stage("read", System.nanoTime() - start);
+
+            start = System.nanoTime();
+            ObfuscationEvents.Clean clean = new ObfuscationEvents.Clean();
+            clean.begin();
+            byte[] runtime = ByteCodeCleanAndRecovry.byteCodeClean(bytecode);
+            ObfuscationEvents.commit(clean, name, contractSeed, bytecode.length, runtime.length);
+            report.stage("clean", System.nanoTime() - start);
+            bytesIn = runtime.length;
+
+            ObfuscationPipeline pipeline = executor == null ? ObfuscationPipeline.standard(new PassOptions(), contractSeed)
+                    : ObfuscationPipeline.partitioned(new PassOptions(), contractSeed, executor, PartitionedPass.DEFAULT_REGION_BYTES);
+            ObfuscationPipeline.Result result = pipeline.setContract(name).run(runtime);
+            report.pipeline(runtime, result);
+
+            start = System.nanoTime();
+            ObfuscationEvents.Recovery recovery = new ObfuscationEvents.Recovery();
+            recovery.begin();
+            byte[] recovered = ByteCodeCleanAndRecovry.byteCodeRecovery(bytecode, result.code);
+            ObfuscationEvents.commit(recovery, name, contractSeed, result.code.length, recovered.length);
+            report.stage("recovery", System.nanoTime() - start);
+
+            start = System.nanoTime();
+            ObfuscationEvents.Write write = new ObfuscationEvents.Write();
+            write.begin();
+            byte[] hex = HexCodec.encodeAscii(recovered);
+            byte[] map = result.offsets.toBytes();
+            writeAtomically(obfuscated.resolve(name), hex);
+            writeAtomically(obfuscated.resolve(name + ".map"), map);
+            ObfuscationEvents.commit(write, name, contractSeed, recovered.length, hex.length + map.length);
+            report.stage("write", System.nanoTime() - start);
+            for (ObfuscationPipeline.PassResult pass : result.passes) {
+                if (!pass.applied) {
+                    skippedPasses.merge(pass.name, 1, Integer::sum);
+                }
+            }
+        } catch (RuntimeException | IOException e) {
+            //malformed bytecode must not kill the worker with the lease held, another worker would take
+            //the contract over and fail the same way
+            failed = true;
+            report.error(e);
+            LOG.warn("{} failed: {}", name, e);
+        }
+        contracts++;
+        this.failed += failed ? 1 : 0;
+        COUNTERS.contract(bytesIn, failed);
+        progress.step(failed);
+        JSONObject record = report.toJson();
+        record.set("worker", worker);
+        writeAtomically(done.resolve(name), record.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    //readers on other nodes never see a half written file
+    private static void writeAtomically(Path file, byte[] content) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + "." + defaultWorker() + ".tmp");
+        Files.write(tmp, content);
+        try {
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Merge the worker summaries and the contract records of an output directory into batch.json and contracts.jsonl
+     * @return the merged summary
+     */
+    public static JSONObject merge(Path out) throws IOException {
+        List<JSONObject> records = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(out.resolve("done"))) {
+            for (Path file : stream) {
+                records.add(JSONUtil.parseObj(new String(Files.readAllBytes(file), StandardCharsets.UTF_8), false, true));
+            }
+        }
+        records.sort((a, b) -> a.getStr("contract").compareTo(b.getStr("contract")));
+        int failed = 0;
+        JSONArray errors = new JSONArray();
+        StringBuilder lines = new StringBuilder();
+        for (JSONObject record : records) {
+            lines.append(record.toString()).append('\n');
+            JSONObject validation = record.getJSONObject("validation");
+            if ("failed".equals(validation.getStr("status"))) {
+                failed++;
+                errors.add(record.getStr("contract") + ": " + validation.getStr("error"));
+            }
+        }
+        JSONArray workerSummaries = new JSONArray();
+        Map<String, Integer> skipped = new TreeMap<>();
+        int processed = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(out.resolve("workers"), "*.json")) {
+            List<Path> files = new ArrayList<>();
+            stream.forEach(files::add);
+            files.sort(null);
+            for (Path file : files) {
+                JSONObject summary = JSONUtil.parseObj(new String(Files.readAllBytes(file), StandardCharsets.UTF_8), false, true);
+                workerSummaries.add(summary);
+                processed += summary.getInt("contracts");
+                JSONObject passes = summary.getJSONObject("skippedPasses");
+                for (String pass : passes.keySet()) {
+                    skipped.merge(pass, passes.getInt(pass), Integer::sum);
+                }
+            }
+        }
+        JSONObject batch = new JSONObject(true);
+        batch.set("createdAt", new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
+        batch.set("contracts", records.size());
+        batch.set("failed", failed);
+        //contracts run again after their lease expired while the holder was still working
+        batch.set("duplicates", Math.max(0, processed - records.size()));
+        batch.set("skippedPasses", new JSONObject(skipped));
+        batch.set("workers", workerSummaries);
+        batch.set("report", RunReport.aggregate(records));
+        batch.set("errors", errors);
+        writeAtomically(out.resolve("contracts.jsonl"), lines.toString().getBytes(StandardCharsets.UTF_8));
+        writeAtomically(out.resolve("batch.json"), batch.toStringPretty().getBytes(StandardCharsets.UTF_8));
+        return batch;
+    }
+
+    //start n worker JVMs on this classpath and wait for them
+    private static void spawn(int n, String[] args) throws IOException, InterruptedException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<Process> processes = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            List<String> command = new ArrayList<>(Arrays.asList(java, "-cp", System.getProperty("java.class.path"),
+                    BatchRunner.class.getName()));
+            command.addAll(Arrays.asList(args));
+            command.add("--worker");
+            command.add(defaultWorker() + "." + i);
+            processes.add(new ProcessBuilder(command).inheritIO().start());
+        }
+        for (Process process : processes) {
+            process.waitFor();
+        }
+    }
+
+    //tested
+    public static void main(String[] args) throws Exception {
+        if (args.length > 1 && args[0].equals("merge")) {
+            System.out.println(merge(Paths.get(args[1])).toStringPretty());
+            return;
+        }
+        List<String> positional = new ArrayList<>();
+        List<String> forwarded = new ArrayList<>();
+        String worker = defaultWorker();
+        long seed = DEFAULT_SEED;
+        long lease = DEFAULT_LEASE_MILLIS;
+        int spawn = 0;
+        int threads = 0;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--worker")) {
+                worker = args[++i];
+            } else if (args[i].equals("--seed")) {
+                seed = Long.parseLong(args[++i]);
+                forwarded.addAll(Arrays.asList(args[i - 1], args[i]));
+            } else if (args[i].equals("--lease")) {
+                lease = Long.parseLong(args[++i]);
+                forwarded.addAll(Arrays.asList(args[i - 1], args[i]));
+            } else if (args[i].equals("--threads")) {
+                threads = Integer.parseInt(args[++i]);
+                forwarded.addAll(Arrays.asList(args[i - 1], args[i]));
+            } else if (args[i].equals("--spawn")) {
+                spawn = Integer.parseInt(args[++i]);
+            } else {
+                positional.add(args[i]);
+            }
+        }
+        Path input = Paths.get(positional.size() > 0 ? positional.get(0) : "../Solidity bytecode dataset");
+        Path out = Paths.get(positional.size() > 1 ? positional.get(1) : "batch-out");
+        if (spawn > 0) {
+            forwarded.addAll(0, Arrays.asList(input.toString(), out.toString()));
+            spawn(spawn, forwarded.toArray(new String[0]));
+            JSONObject batch = merge(out);
+            System.out.println(batch.getInt("contracts") + " contracts (" + batch.getInt("failed") + " failed, "
+                    + batch.getInt("duplicates") + " duplicates) by " + spawn + " workers, see " + out.resolve("batch.json"));
+            return;
+        }
+        ExecutorService executor = threads <= 0 ? null : Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "partition");
+            t.setDaemon(true);
+            return t;
+        });
+        JSONObject summary = new BatchRunner(input, out, worker, seed).setLeaseMillis(lease).setExecutor(executor).run();
+        System.out.println(summary);
+    }
+}
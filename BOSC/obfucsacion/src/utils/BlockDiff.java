@@ -0,0 +1,181 @@
+package utils;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Basic-block diff of two runtime sections, e.g. two compilations of a contract.
+ * Blocks are compared by their instructions; relocated jump target PUSHes (see EditBuffer) only
+ * count as "a jump target" of any width, so blocks that merely moved still match.
+ * The block sequences are matched by their longest common subsequence after the common head and
+ * tail are cut off; a middle part larger than MAX_CELLS counts as changed as a whole.
+ */
+public class BlockDiff {
+
+    public static final long MAX_CELLS = 1 << 22;
+
+    private final ControlFlowGraph oldCfg;
+    private final ControlFlowGraph newCfg;
+    //new block of every old block and back, -1 if it changed
+    private final int[] oldToNew;
+    private final int[] newToOld;
+    //new offset of every old instruction start of an unchanged block, -1 otherwise
+    private final int[] offsets;
+    private int unchanged;
+
+    public BlockDiff(byte[] oldCode, byte[] newCode) {
+        this.oldCfg = new ControlFlowGraph(oldCode);
+        this.newCfg = new ControlFlowGraph(newCode);
+        EditBuffer oldRefs = new EditBuffer(oldCode);
+        EditBuffer newRefs = new EditBuffer(newCode);
+        long[] a = signatures(oldCfg, oldRefs);
+        long[] b = signatures(newCfg, newRefs);
+        this.oldToNew = new int[a.length];
+        this.newToOld = new int[b.length];
+        Arrays.fill(oldToNew, -1);
+        Arrays.fill(newToOld, -1);
+        this.offsets = new int[oldCode.length + 1];
+        Arrays.fill(offsets, -1);
+
+        int head = 0;
+        while (head < a.length && head < b.length && a[head] == b[head]) {
+            head++;
+        }
+        int tail = 0;
+        while (tail < a.length - head && tail < b.length - head && a[a.length - 1 - tail] == b[b.length - 1 - tail]) {
+            tail++;
+        }
+        for (int i = 0; i < head; i++) {
+            match(i, i, oldRefs, newRefs);
+        }
+        for (int i = 1; i <= tail; i++) {
+            match(a.length - i, b.length - i, oldRefs, newRefs);
+        }
+        int n = a.length - head - tail;
+        int m = b.length - head - tail;
+        if (n > 0 && m > 0 && (long) (n + 1) * (m + 1) <= MAX_CELLS) {
+            //lcs[i][j]: longest common subsequence of the middle parts from i and j on
+            int[][] lcs = new int[n + 1][m + 1];
+            for (int i = n - 1; i >= 0; i--) {
+                for (int j = m - 1; j >= 0; j--) {
+                    lcs[i][j] = a[head + i] == b[head + j] ? lcs[i + 1][j + 1] + 1 : Math.max(lcs[i + 1][j], lcs[i][j + 1]);
+                }
+            }
+            int i = 0;
+            int j = 0;
+            while (i < n && j < m) {
+                if (a[head + i] == b[head + j]) {
+                    match(head + i++, head + j++, oldRefs, newRefs);
+                } else if (lcs[i + 1][j] >= lcs[i][j + 1]) {
+                    i++;
+                } else {
+                    j++;
+                }
+            }
+        }
+        if (a.length > 0 && b.length > 0 && oldToNew[a.length - 1] == b.length - 1) {
+            offsets[oldCode.length] = newCode.length;
+        }
+    }
+
+    //instructions of the block, relocated PUSHes as one token of any width
+    private static long[] signatures(ControlFlowGraph cfg, EditBuffer refs) {
+        byte[] code = cfg.code();
+        List<ControlFlowGraph.Block> blocks = cfg.blocks();
+        long[] signatures = new long[blocks.size()];
+        for (ControlFlowGraph.Block block : blocks) {
+            long hash = 0xcbf29ce484222325L;
+            for (int pc = block.start; pc < block.end; pc = Opcodes.next(code, pc)) {
+                hash = (hash ^ token(code, refs, pc)) * 0x100000001b3L;
+                if (refs.jumpTarget(pc) < 0) {
+                    for (int k = pc + 1; k < Math.min(Opcodes.next(code, pc), code.length); k++) {
+                        hash = (hash ^ (code[k] & 0xFF)) * 0x100000001b3L;
+                    }
+                }
+            }
+            signatures[block.index] = hash;
+        }
+        return signatures;
+    }
+
+    private static int token(byte[] code, EditBuffer refs, int pc) {
+        return refs.jumpTarget(pc) >= 0 ? 0x100 : code[pc] & 0xFF;
+    }
+
+    //pair two blocks of equal signature, instruction by instruction
+    private void match(int oldBlock, int newBlock, EditBuffer oldRefs, EditBuffer newRefs) {
+        byte[] oldCode = oldCfg.code();
+        byte[] newCode = newCfg.code();
+        ControlFlowGraph.Block o = oldCfg.blocks().get(oldBlock);
+        ControlFlowGraph.Block n = newCfg.blocks().get(newBlock);
+        int p = o.start;
+        int q = n.start;
+        while (p < o.end && q < n.end) {
+            if (token(oldCode, oldRefs, p) != token(newCode, newRefs, q)) {
+                //hash collision
+                for (int pc = o.start; pc < p; pc++) {
+                    offsets[pc] = -1;
+                }
+                return;
+            }
+            offsets[p] = q;
+            p = Opcodes.next(oldCode, p);
+            q = Opcodes.next(newCode, q);
+        }
+        if (p < o.end || q < n.end) {
+            for (int pc = o.start; pc < o.end; pc++) {
+                offsets[pc] = -1;
+            }
+            return;
+        }
+        oldToNew[oldBlock] = newBlock;
+        newToOld[newBlock] = oldBlock;
+        unchanged++;
+    }
+
+    public ControlFlowGraph oldCfg() {
+        return oldCfg;
+    }
+
+    public ControlFlowGraph newCfg() {
+        return newCfg;
+    }
+
+    /**
+     * New block of an old block, -1 if it changed
+     */
+    public int newBlock(int oldBlock) {
+        return oldToNew[oldBlock];
+    }
+
+    /**
+     * Old block of a new block, -1 if it is new or changed
+     */
+    public int oldBlock(int newBlock) {
+        return newToOld[newBlock];
+    }
+
+    /**
+     * New offset of an old instruction start of an unchanged block, -1 otherwise.
+     * The old code length maps to the new one if the last blocks are unchanged.
+     */
+    public int newOffset(int oldOffset) {
+        return offsets[oldOffset];
+    }
+
+    public int unchangedBlocks() {
+        return unchanged;
+    }
+
+    //tested
+    public static void main(String[] args) {
+        //PUSH1 6 JUMP STOP STOP STOP JUMPDEST STOP, then two more bytes in front of the jumpdest
+        byte[] before = HexCodec.decode("600656000000" + "5b00");
+        EditBuffer buf = new EditBuffer(before);
+        buf.insert(3, SnippetTemplate.compile("change", "6001 50"), new long[0]);
+        byte[] after = buf.apply();
+        BlockDiff diff = new BlockDiff(before, after);
+        System.out.println(HexCodec.encode(after) + " " + diff.unchangedBlocks() + "/" + diff.oldCfg().blocks().size()
+                + " blocks unchanged, jumpdest 6 -> " + diff.newOffset(6));
+    }
+}
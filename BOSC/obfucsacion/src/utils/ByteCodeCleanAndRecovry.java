@@ -11,6 +11,7 @@ import static utils.CodeStingToArray.ToArray;
  * Bytecode cleaning and recovery
  */
 public class ByteCodeCleanAndRecovry {
+    private static final Log LOG = Log.get(ByteCodeCleanAndRecovry.class);
 
     public static String[] byteCodeClean(String[] bytecode){
         //60 80 60 40
@@ -21,7 +22,6 @@ public class ByteCodeCleanAndRecovry {
             if (bytecode[i].equals("f3")/*&&bytecode[i+1].equals("fe")
                     || bytecode[i].equals("f3")&&bytecode[i+1].equals("00")*/){
                 start = i+1;
-                System.out.println("start:"+start);
                 break;
             }
         }
@@ -34,16 +34,14 @@ public class ByteCodeCleanAndRecovry {
                 break;
             }
         }
+        LOG.debug("clean: runtime from {}, auxdata at {}", start + 1, end);
 
         if(end==bytecode.length-1){
-            System.out.println("无auxdata");
 //            String[] rs = new String[bytecode.length-start];
 //            System.arraycopy(bytecode,start+1,rs,0,bytecode.length-start);
-            System.out.println(start+2);
               String[] rs = ArrayUtil.sub(bytecode, start+1, end);
               return rs; 
         }else {//有auxdata
-            System.out.println("有auxdata");
 //            String[] rs = new String[end-start+1];
 //            System.arraycopy(bytecode,start+1,rs,0,end-start+1);
             String[] rs = ArrayUtil.sub(bytecode, start+1, end);
@@ -51,6 +49,57 @@ public class ByteCodeCleanAndRecovry {
         }
     }
 
+    /**
+     * Bounds of the runtime section in bytecode bytes, end exclusive.
+     * Like byteCodeClean the runtime starts after the deployment code's RETURN and the INVALID (STOP
+     * for older compilers) behind it,
+     * but the RETURN is searched on instruction boundaries only and the auxdata is located through
+     * the CBOR length stored in the last two bytes instead of the first a1..a4 byte.
+     * Runtime-only input gives start 0.
+     */
+    public static int[] runtimeRange(byte[] bytecode){
+        int start = 0;
+        for (int pc = 0; pc < bytecode.length - 1; pc = Opcodes.next(bytecode, pc)) {
+            int after = bytecode[pc + 1] & 0xFF;
+            if ((bytecode[pc] & 0xFF) == Opcodes.RETURN && (after == Opcodes.INVALID || after == Opcodes.STOP)){
+                start = pc + 2;
+                break;
+            }
+        }
+        int end = bytecode.length;
+        if (bytecode.length - start >= 2) {
+            int auxLength = (bytecode[end - 2] & 0xFF) << 8 | (bytecode[end - 1] & 0xFF);
+            int auxStart = end - 2 - auxLength;
+            if (auxLength > 0 && auxStart >= start) {
+                int marker = bytecode[auxStart] & 0xFF;
+                if (marker >= 0xa1 && marker <= 0xa4){
+                    end = auxStart;
+                }
+            }
+        }
+        return new int[]{start, end};
+    }
+
+    /**
+     * Runtime section of bytecode bytes, see runtimeRange
+     */
+    public static byte[] byteCodeClean(byte[] bytecode){
+        int[] range = runtimeRange(bytecode);
+        return Arrays.copyOfRange(bytecode, range[0], range[1]);
+    }
+
+    /**
+     * Put an obfuscated runtime section back between the deployment code and the auxdata
+     */
+    public static byte[] byteCodeRecovery(byte[] bytecode, byte[] obfuscatedRuntime){
+        int[] range = runtimeRange(bytecode);
+        byte[] rs = new byte[range[0] + obfuscatedRuntime.length + bytecode.length - range[1]];
+        System.arraycopy(bytecode, 0, rs, 0, range[0]);
+        System.arraycopy(obfuscatedRuntime, 0, rs, range[0], obfuscatedRuntime.length);
+        System.arraycopy(bytecode, range[1], rs, range[0] + obfuscatedRuntime.length, bytecode.length - range[1]);
+        return rs;
+    }
+
     public static String[] byteCodeRecovery(String[] bytecode, String[] obfuscatedBytecode){
 
         int start = 0;
@@ -59,7 +108,6 @@ public class ByteCodeCleanAndRecovry {
             if (bytecode[i].equals("f3")/*&&bytecode[i+1].equals("fe")
                     || bytecode[i].equals("f3")&&bytecode[i+1].equals("00")*/){
                 start = i+1;
-                System.out.println("start:"+start);
                 break;
             }
         }
@@ -73,18 +121,18 @@ public class ByteCodeCleanAndRecovry {
             }
         }
 
+        LOG.debug("recovery: runtime from {}, auxdata at {}", start + 1, end);
+
 //        String[] deploydata = new String[start];
 //        String[] auxdata = new String[bytecode.length-end];
 
         if(end==bytecode.length-1){
-            System.out.println("no auxdata...");
 //            System.arraycopy(bytecode,0,deploydata,0,start);
 //            System.arraycopy(bytecode,end,auxdata,0,bytecode.length-end);
             String[] deploy =  ArrayUtil.sub(bytecode, 0, start+1);
             String[] rs = arrayJoin(deploy, obfuscatedBytecode);
             return rs;
         }else {
-            System.out.println("have auxdata...");
             String[] deploy =  ArrayUtil.sub(bytecode, 0, start+1);
             String[] auxdata =  ArrayUtil.sub(bytecode, end,bytecode.length);
 
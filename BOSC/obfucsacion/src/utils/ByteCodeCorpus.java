@@ -0,0 +1,339 @@
+package utils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Packed binary corpus: every bytecode of a dataset directory in one memory-mapped file.
+ *
+ * Layout (big-endian):
+ *   header  magic "BOSCPACK", version int, entry count int, string table offset long, data offset long
+ *   index   one 40 byte entry per contract, sorted by name:
+ *           name offset int, name length int, data offset long, length int,
+ *           runtime start int, runtime end int, reserved int, FNV-1a hash long
+ *   strings UTF-8 names
+ *   data    raw bytecode (deployment + runtime + aux), 8 byte aligned
+ * The runtime range is the one ByteCodeCleanAndRecovry.runtimeRange computed at pack time.
+ * Opening checks every offset of the header and the index against the file size.
+ *
+ * usage: ByteCodeCorpus pack [datasetDir] [corpusFile] | unpack corpusFile dir | list corpusFile
+ */
+public class ByteCodeCorpus {
+
+    private static final byte[] MAGIC = "BOSCPACK".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int ENTRY_SIZE = 40;
+
+    /**
+     * One contract of the corpus, code is a read-only view of the mapped file
+     */
+    public static final class Entry {
+        public final int index;
+        public final String name;
+        public final ByteBuffer code;
+        public final int runtimeStart;
+        public final int runtimeEnd;
+        public final long hash;
+
+        Entry(int index, String name, ByteBuffer code, int runtimeStart, int runtimeEnd, long hash) {
+            this.index = index;
+            this.name = name;
+            this.code = code;
+            this.runtimeStart = runtimeStart;
+            this.runtimeEnd = runtimeEnd;
+            this.hash = hash;
+        }
+
+        /**
+         * Heap copy of the whole bytecode
+         */
+        public byte[] bytes() {
+            byte[] rs = new byte[code.remaining()];
+            code.duplicate().get(rs);
+            return rs;
+        }
+
+        /**
+         * View of the runtime section
+         */
+        public ByteBuffer runtime() {
+            ByteBuffer rs = code.duplicate();
+            rs.position(runtimeStart).limit(runtimeEnd);
+            return rs.slice();
+        }
+    }
+
+    private final ByteBuffer map;
+    private final int count;
+    private final String[] names;
+
+    private ByteCodeCorpus(ByteBuffer map) {
+        this.map = map;
+        byte[] magic = new byte[MAGIC.length];
+        if (map.limit() < HEADER_SIZE) {
+            throw new IllegalArgumentException("not a version " + VERSION + " bytecode corpus");
+        }
+        map.duplicate().get(magic);
+        if (!Arrays.equals(magic, MAGIC) || map.getInt(8) != VERSION) {
+            throw new IllegalArgumentException("not a version " + VERSION + " bytecode corpus");
+        }
+        this.count = map.getInt(12);
+        long stringOffset = map.getLong(16);
+        long dataOffset = map.getLong(24);
+        long limit = map.limit();
+        if (count < 0 || HEADER_SIZE + (long) count * ENTRY_SIZE > stringOffset || stringOffset > dataOffset
+                || dataOffset > limit) {
+            throw new IllegalArgumentException("corrupt corpus header: " + count + " entries, strings at "
+                    + stringOffset + ", data at " + dataOffset + ", " + limit + " bytes");
+        }
+        //names are decoded once, binary search by name needs them
+        this.names = new String[count];
+        for (int i = 0; i < count; i++) {
+            int at = entry(i);
+            long nameOffset = map.getInt(at);
+            long nameLength = map.getInt(at + 4);
+            long offset = map.getLong(at + 8);
+            long length = map.getInt(at + 16);
+            int runtimeStart = map.getInt(at + 20);
+            int runtimeEnd = map.getInt(at + 24);
+            if (nameOffset < stringOffset || nameLength < 0 || nameOffset + nameLength > dataOffset
+                    || offset < dataOffset || length < 0 || offset + length > limit
+                    || runtimeStart < 0 || runtimeStart > runtimeEnd || runtimeEnd > length) {
+                throw new IllegalArgumentException("corrupt corpus entry " + i);
+            }
+            byte[] name = new byte[(int) nameLength];
+            ByteBuffer view = map.duplicate();
+            view.position((int) nameOffset);
+            view.get(name);
+            names[i] = new String(name, StandardCharsets.UTF_8);
+            if (i > 0 && names[i - 1].compareTo(names[i]) >= 0) {
+                throw new IllegalArgumentException("corrupt corpus entry " + i + ": names are not sorted and unique");
+            }
+        }
+    }
+
+    /**
+     * Map a corpus file read-only
+     */
+    public static ByteCodeCorpus open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is larger than 2GB, split the dataset");
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new ByteCodeCorpus(map);
+        }
+    }
+
+    private static int entry(int i) {
+        return HEADER_SIZE + i * ENTRY_SIZE;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Names in index order (sorted) - do not modify
+     */
+    public List<String> names() {
+        return Collections.unmodifiableList(Arrays.asList(names));
+    }
+
+    /**
+     * Index of a contract, -1 if the corpus does not have it
+     */
+    public int find(String name) {
+        int i = Arrays.binarySearch(names, name);
+        return i >= 0 ? i : -1;
+    }
+
+    public Entry get(int i) {
+        int at = entry(i);
+        ByteBuffer code = map.duplicate();
+        long offset = map.getLong(at + 8);
+        code.position((int) offset).limit((int) offset + map.getInt(at + 16));
+        return new Entry(i, names[i], code.slice().asReadOnlyBuffer(), map.getInt(at + 20), map.getInt(at + 24),
+                map.getLong(at + 32));
+    }
+
+    /**
+     * @return null if the corpus does not have the contract
+     */
+    public Entry get(String name) {
+        int i = find(name);
+        return i < 0 ? null : get(i);
+    }
+
+    /**
+     * Entries [from, to), call parallel() to spread them over the common pool
+     */
+    public Stream<Entry> entries(int from, int to) {
+        return IntStream.range(from, to).mapToObj(this::get);
+    }
+
+    public Stream<Entry> entries() {
+        return entries(0, count);
+    }
+
+    /**
+     * Whether the stored hash still matches the bytes
+     */
+    public boolean verify(Entry entry) {
+        return hash(entry.code.duplicate()) == entry.hash;
+    }
+
+    /**
+     * 64 bit FNV-1a of the remaining bytes
+     */
+    public static long hash(ByteBuffer bytes) {
+        long h = 0xcbf29ce484222325L;
+        while (bytes.hasRemaining()) {
+            h ^= bytes.get() & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Pack every decodable .hex file of a directory
+     * @return names of the files that could not be decoded (e.g. unlinked library placeholders)
+     */
+    public static List<String> pack(Path dir, Path out) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.hex")) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        files.sort((a, b) -> a.getFileName().toString().compareTo(b.getFileName().toString()));
+        byte[][] codes = new byte[files.size()][];
+        IntStream.range(0, files.size()).parallel().forEach(i -> {
+            try {
+                codes[i] = ByteCodeInput.readBytecode(files.get(i).toString());
+            } catch (IllegalArgumentException e) {
+                codes[i] = null;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        List<String> names = new ArrayList<>();
+        List<byte[]> packed = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            String name = files.get(i).getFileName().toString();
+            if (codes[i] == null) {
+                failed.add(name);
+            } else {
+                names.add(name);
+                packed.add(codes[i]);
+            }
+        }
+        write(names, packed, out);
+        return failed;
+    }
+
+    /**
+     * Write a corpus, names must be sorted and unique
+     */
+    public static void write(List<String> names, List<byte[]> codes, Path out) throws IOException {
+        int n = names.size();
+        byte[][] encodedNames = new byte[n][];
+        int strings = 0;
+        for (int i = 0; i < n; i++) {
+            if (i > 0 && names.get(i - 1).compareTo(names.get(i)) >= 0) {
+                throw new IllegalArgumentException("names must be sorted and unique: " + names.get(i));
+            }
+            encodedNames[i] = names.get(i).getBytes(StandardCharsets.UTF_8);
+            strings += encodedNames[i].length;
+        }
+        long stringOffset = HEADER_SIZE + (long) n * ENTRY_SIZE;
+        long dataOffset = align(stringOffset + strings);
+        long size = dataOffset;
+        for (byte[] code : codes) {
+            size = align(size + code.length);
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("corpus would be larger than 2GB");
+        }
+        ByteBuffer buf = ByteBuffer.allocate((int) size);
+        buf.put(MAGIC).putInt(VERSION).putInt(n).putLong(stringOffset).putLong(dataOffset);
+        int name = (int) stringOffset;
+        long data = dataOffset;
+        for (int i = 0; i < n; i++) {
+            byte[] code = codes.get(i);
+            int[] range = ByteCodeCleanAndRecovry.runtimeRange(code);
+            buf.position(entry(i));
+            buf.putInt(name).putInt(encodedNames[i].length).putLong(data).putInt(code.length)
+                    .putInt(range[0]).putInt(range[1]).putInt(0).putLong(hash(ByteBuffer.wrap(code)));
+            buf.position(name);
+            buf.put(encodedNames[i]);
+            buf.position((int) data);
+            buf.put(code);
+            name += encodedNames[i].length;
+            data = align(data + code.length);
+        }
+        Files.write(out, buf.array());
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    /**
+     * Write every contract back as a .hex text file
+     * @throws IllegalArgumentException if a name is not a plain file name (a path separator, "..")
+     */
+    public void unpack(Path dir) throws IOException {
+        for (String name : names) {
+            if (name.isEmpty() || name.contains("/") || name.contains("\\") || name.contains("..")
+                    || !dir.resolve(name).getParent().equals(dir)) {
+                throw new IllegalArgumentException("entry name is not a plain file name: " + name);
+            }
+        }
+        Files.createDirectories(dir);
+        for (int i = 0; i < count; i++) {
+            Entry entry = get(i);
+            Files.write(dir.resolve(entry.name), HexCodec.encodeAscii(entry.bytes()));
+        }
+    }
+
+    //tested
+    public static void main(String[] args) throws IOException {
+        String command = args.length > 0 ? args[0] : "pack";
+        if (command.equals("pack")) {
+            Path dir = Paths.get(args.length > 1 ? args[1] : "../Solidity bytecode dataset");
+            Path out = Paths.get(args.length > 2 ? args[2] : "dataset.pack");
+            long start = System.currentTimeMillis();
+            List<String> failed = pack(dir, out);
+            System.out.println("packed " + out + " in " + (System.currentTimeMillis() - start) + "ms, skipped " + failed);
+        } else if (command.equals("unpack")) {
+            ByteCodeCorpus corpus = open(Paths.get(args[1]));
+            corpus.unpack(Paths.get(args[2]));
+            System.out.println("unpacked " + corpus.size() + " contracts to " + args[2]);
+        } else {
+            long start = System.nanoTime();
+            ByteCodeCorpus corpus = open(Paths.get(args[1]));
+            long runtime = corpus.entries().parallel().mapToLong(e -> e.runtimeEnd - e.runtimeStart).sum();
+            long broken = corpus.entries().parallel().filter(e -> !corpus.verify(e)).count();
+            System.out.println(corpus.size() + " contracts, " + runtime + " runtime bytes, " + broken
+                    + " hash mismatches, " + (System.nanoTime() - start) / 1000 + "us");
+        }
+    }
+}
@@ -14,6 +14,26 @@ public class ByteCodeInput {
         return lines;
     }
 
+    /**
+     * Read a .hex bytecode file straight into bytes, trailing line breaks and spaces are ignored
+     * @param url file path
+     * @return bytecode bytes
+     */
+    public static byte[] readBytecode(String url) throws IOException {
+        byte[] ascii = Files.readAllBytes(Paths.get(url));
+        int end = ascii.length;
+        while (end > 0 && ascii[end - 1] <= ' ') {
+            end--;
+        }
+        return HexCodec.decode(ascii, 0, end);
+    }
+
+    /**
+     * Read a .hex bytecode file as the string array used by the obfuscation methods
+     */
+    public static String[] readBytecodeArray(String url) throws IOException {
+        return HexCodec.toStringArray(readBytecode(url));
+    }
 
     //tested
     public static void main(String[] args) throws Exception {
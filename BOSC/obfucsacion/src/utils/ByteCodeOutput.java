@@ -3,43 +3,66 @@ package utils;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
 
 public class ByteCodeOutput {
+    private static final Log LOG = Log.get(ByteCodeOutput.class);
 
     public static boolean createFile(String destFileName,String info) {
+        return createFile(destFileName, info.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Write bytecode bytes as a .hex file
+     * @param destFileName destination file
+     * @param bytecode raw bytecode, encoded to lowercase hex
+     * @return succeeded or not
+     */
+    public static boolean createBytecodeFile(String destFileName, byte[] bytecode) {
+        return createFile(destFileName, HexCodec.encodeAscii(bytecode));
+    }
+
+    /**
+     * Write a binary file as is, e.g. the OffsetMap of an obfuscated bytecode
+     * @return succeeded or not
+     */
+    public static boolean createBinaryFile(String destFileName, byte[] content) {
+        return createFile(destFileName, content);
+    }
+
+    private static boolean createFile(String destFileName, byte[] content) {
         File file = new File(destFileName);
         if (file.exists()) {
-            System.out.println("Create a single file" + destFileName + "failed, target file already exists!");
+            LOG.warn("Create a single file {} failed, target file already exists!", destFileName);
             return false;
         }
         if (destFileName.endsWith(File.separator)) {
-            System.out.println("Create a single file" + destFileName + "failed, target file cannot be a directory!");
+            LOG.warn("Create a single file {} failed, target file cannot be a directory!", destFileName);
             return false;
         }
         if (!file.getParentFile().exists()) {
-            System.out.println("Create" + file.getName() + "The directory does not exist, it is being created!");
+            LOG.debug("Create {}: the directory does not exist, it is being created", destFileName);
             if (!file.getParentFile().mkdirs()) {
-                System.out.println("Failed to create the directory where the object file is located!");
+                LOG.warn("Failed to create the directory of {}!", destFileName);
                 return false;
             }
         }
         try {
             if (file.createNewFile()) {
-                System.out.println("Create a single file" + destFileName + "succeeded！");
+                LOG.debug("Create a single file {} succeeded", destFileName);
                 java.io.OutputStream out = new FileOutputStream(file);
-                out.write(info.getBytes("utf-8"));
+                out.write(content);
                 out.close();
                 return true;
             } else {
-                System.out.println("Create a single file" + destFileName + "failed！");
+                LOG.warn("Create a single file {} failed!", destFileName);
                 return false;
             }
         } catch (IOException e) {
-            e.printStackTrace();
-            System.out.println("Create file" + destFileName + "failed！" + e.getMessage());
+            LOG.error("Create file {} failed!", destFileName, e);
             return false;
         }
     }
@@ -0,0 +1,116 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks an obfuscated runtime section against the code it was laid out from:
+ *   every JUMPDEST of the original code (unless deleted) is still a JUMPDEST at its new offset
+ *   untracked JUMPDESTs (StackFlow.isUntrackedJumpdest()) keep their offset
+ *   every relocated PUSH holds the new offset of the JUMPDEST it points at
+ *   no more jumps of the new code than of the original may be reached by a constant that is not a
+ *   JUMPDEST, the jump target PUSHes of both are found by StackFlow
+ *   the last instruction is not cut off unless it already was
+ *   the code still fits the EIP-170 size limit if the original did
+ * The StackFlow runs of the buffer and the layout are reused, see EditBuffer.flow() and Layout.flow().
+ */
+public class ByteCodeValidator {
+
+    //EIP-170
+    public static final int MAX_CODE_SIZE = 24576;
+
+    /**
+     * @return the problems found, empty if the layout is valid
+     */
+    public static List<String> validate(EditBuffer buf, EditBuffer.Layout layout) {
+        byte[] original = buf.original();
+        List<String> problems = new ArrayList<>();
+        byte[] code = layout.code;
+        boolean[] starts = Opcodes.instructionStarts(code, 0, code.length);
+        for (int pc = 0; pc < original.length; pc = Opcodes.next(original, pc)) {
+            if ((original[pc] & 0xFF) != Opcodes.JUMPDEST) {
+                continue;
+            }
+            int moved = layout.newOffsets[pc];
+            if (moved == layout.newOffsets[pc + 1]) {
+                continue;
+            }
+            if (moved >= code.length || !starts[moved] || (code[moved] & 0xFF) != Opcodes.JUMPDEST) {
+                problems.add("jumpdest " + pc + " is lost at " + moved);
+                //one lost jumpdest is enough, the rest usually follows from it
+                break;
+            }
+            if (moved != pc && buf.flow().isUntrackedJumpdest(pc)) {
+                problems.add("untracked jumpdest " + pc + " moved to " + moved);
+                break;
+            }
+        }
+        for (int pc = 0; pc < original.length; pc++) {
+            int target = layout.targets[pc];
+            if (target >= 0 && !holds(code, starts, layout.newOffsets[pc], layout.newOffsets[target])) {
+                problems.add("jump target " + pc + " misses jumpdest " + target + " at " + layout.newOffsets[target]);
+                break;
+            }
+        }
+        int before = buf.flow().badJumps();
+        int after = layout.flow().badJumps();
+        if (after > before) {
+            problems.add((after - before) + " jumps miss a jumpdest");
+        }
+        if (truncated(code) && !truncated(original)) {
+            problems.add("last instruction is cut off");
+        }
+        if (code.length > MAX_CODE_SIZE && original.length <= MAX_CODE_SIZE) {
+            problems.add("code size " + code.length + " exceeds " + MAX_CODE_SIZE);
+        }
+        return problems;
+    }
+
+    //whether the instruction at pc is a PUSH of the JUMPDEST at target
+    private static boolean holds(byte[] code, boolean[] starts, int pc, int target) {
+        int op = code[pc] & 0xFF;
+        int size = Opcodes.immediateSize(op);
+        return Opcodes.isPush(op) && size <= 4 && pc + size < code.length && Opcodes.pushValue(code, pc) == target
+                && target < code.length && starts[target] && (code[target] & 0xFF) == Opcodes.JUMPDEST;
+    }
+
+    /**
+     * Number of JUMPs and JUMPIs a constant that is not a JUMPDEST may reach, see StackFlow
+     */
+    public static int badJumps(byte[] code) {
+        return new StackFlow(code).badJumps();
+    }
+
+    private static boolean truncated(byte[] code) {
+        int pc = 0;
+        while (pc < code.length) {
+            pc = Opcodes.next(code, pc);
+        }
+        return pc > code.length;
+    }
+
+    //tested
+    public static void main(String[] args) {
+        //PUSH1 3 JUMP JUMPDEST STOP
+        EditBuffer buf = new EditBuffer(HexCodec.decode("6003565b00"));
+        buf.stamp(3, SnippetTemplates.get(SnippetTemplates.FLOWER + ".jump"), new Random(1));
+        List<String> problems = validate(buf, buf.layout());
+        System.out.println(problems);
+        Checks.check(problems.isEmpty(), "relocated jump is valid");
+        //PUSH1 7 (return address) PUSH1 9 JUMP PUSH1 0 | JUMPDEST STOP | JUMPDEST JUMP, then the
+        //return address left pointing at its old offset
+        buf = new EditBuffer(HexCodec.decode("600760095600005b005b56"));
+        buf.stamp(5, SnippetTemplates.get(SnippetTemplates.FLOWER + ".jump"), new Random(1));
+        EditBuffer.Layout layout = buf.layout();
+        problems = validate(buf, layout);
+        System.out.println(problems);
+        Checks.check(problems.isEmpty(), "relocated call is valid");
+        layout.code = layout.code.clone();
+        layout.code[1] = 7;
+        problems = validate(buf, layout);
+        System.out.println(problems);
+        Checks.check(problems.size() == 2 && problems.get(0).startsWith("jump target 0 misses jumpdest 7"),
+                "stale return address is found");
+    }
+}
@@ -0,0 +1,20 @@
+package utils;
+
+/**
+ * Checks of the //tested mains: a failed check throws, so the demo exits non-zero
+ */
+public class Checks {
+
+    public static void check(boolean ok, String what) {
+        if (!ok) {
+            throw new AssertionError("check failed: " + what);
+        }
+    }
+
+    /**
+     * Whether code holds a JUMPDEST at pc
+     */
+    public static boolean jumpdestAt(byte[] code, int pc) {
+        return pc >= 0 && pc < code.length && (code[pc] & 0xFF) == Opcodes.JUMPDEST;
+    }
+}
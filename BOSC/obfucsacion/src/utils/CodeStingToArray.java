@@ -4,23 +4,27 @@ import java.util.Arrays;
 
 public class CodeStingToArray {
 
+    /**
+     * Group every two characters of the bytecode into one array element, as they are
+     * (lowercase hex goes through HexCodec, anything else such as upper case digits or library
+     * placeholders __$...$__ is split the old way)
+     * @param bytecode hex string, an odd trailing character is kept as its own element
+     * @return bytecode array
+     */
     public static String[] ToArray(String bytecode){
-        int m = bytecode.length()/2;
-
-        if(m*2 < bytecode.length()){
-            m++;
+        for (int i = 0; i < bytecode.length(); i++) {
+            char c = bytecode.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return split(bytecode);
+            }
         }
+        return HexCodec.toStringArray(bytecode);
+    }
 
-        String[] strs=new String[m];
-
-        int j = 0;
-        for(int i = 0;i < bytecode.length();i++){
-            if(i%2 == 0){
-                strs[j] = "" + bytecode.charAt(i);
-            }else{
-                strs[j] = strs[j] + "" + bytecode.charAt(i);
-                j++;
-            }
+    private static String[] split(String bytecode){
+        String[] strs = new String[(bytecode.length() + 1) / 2];
+        for (int i = 0; i < strs.length; i++) {
+            strs[i] = bytecode.substring(2 * i, Math.min(2 * i + 2, bytecode.length()));
         }
         return strs;
     }
@@ -31,6 +35,7 @@ public class CodeStingToArray {
         System.out.println(Arrays.toString(temp));
         System.out.println(temp[1]);
         System.out.println(temp[1].equals("80"));
+        System.out.println(Arrays.toString(ToArray("6080__$1234$__56")));
     }
 
 }
@@ -0,0 +1,171 @@
+package utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Basic blocks of a runtime section and the jumps between them.
+ * A block starts at offset 0, at every JUMPDEST and behind every JUMPI or terminator.
+ * Static edges come from a PUSH that directly feeds the block's JUMP/JUMPI. Jumps with a computed
+ * target (returns of internal functions) get no edge, instead every jumpdest constant pushed by a
+ * block counts as reachable from it - the address will be jumped to later.
+ */
+public class ControlFlowGraph {
+
+    public static final class Block {
+        public final int index;
+        public final int start;
+        //exclusive
+        public int end;
+        //offset of the last instruction
+        public int last;
+        public boolean dynamicJump;
+        public final List<Integer> successors = new ArrayList<>();
+        public final List<Integer> pushedTargets = new ArrayList<>();
+
+        Block(int index, int start) {
+            this.index = index;
+            this.start = start;
+        }
+
+        public int lastOpcode(byte[] code) {
+            return code[last] & 0xFF;
+        }
+
+        @Override
+        public String toString() {
+            return "block" + index + "[" + start + "," + end + ")->" + successors;
+        }
+    }
+
+    private final byte[] code;
+    private final List<Block> blocks = new ArrayList<>();
+    private final int[] blockOfOffset;
+
+    public ControlFlowGraph(byte[] code) {
+        this.code = code;
+        this.blockOfOffset = new int[code.length];
+        boolean[] jumpdest = new boolean[code.length];
+        for (int pc = 0; pc < code.length; pc = Opcodes.next(code, pc)) {
+            jumpdest[pc] = (code[pc] & 0xFF) == Opcodes.JUMPDEST;
+        }
+
+        Block current = null;
+        int previous = -1;
+        for (int pc = 0; pc < code.length; pc = Opcodes.next(code, pc)) {
+            int op = code[pc] & 0xFF;
+            if (current == null || jumpdest[pc]) {
+                if (current != null) {
+                    current.end = pc;
+                    current.last = previous;
+                }
+                current = new Block(blocks.size(), pc);
+                blocks.add(current);
+            }
+            int next = Math.min(Opcodes.next(code, pc), code.length);
+            Arrays.fill(blockOfOffset, pc, next, current.index);
+            previous = pc;
+            if (Opcodes.isPush(op) && Opcodes.immediateSize(op) <= 4) {
+                long value = Opcodes.pushValue(code, pc);
+                if (value < code.length && jumpdest[(int) value]) {
+                    current.pushedTargets.add((int) value);
+                }
+            }
+            if (op == Opcodes.JUMPI || Opcodes.isTerminator(op)) {
+                current.end = next;
+                current.last = pc;
+                current = null;
+            }
+        }
+        if (current != null) {
+            current.end = code.length;
+            current.last = previous;
+        }
+
+        for (Block block : blocks) {
+            int op = block.lastOpcode(code);
+            if (op == Opcodes.JUMP || op == Opcodes.JUMPI) {
+                int target = staticTarget(block);
+                if (target >= 0 && jumpdest[target]) {
+                    block.successors.add(blockOfOffset[target]);
+                    //the PUSH feeding the jump is an edge, not a pushed address
+                    block.pushedTargets.remove(Integer.valueOf(target));
+                } else if (op == Opcodes.JUMP) {
+                    block.dynamicJump = true;
+                }
+            }
+            if (!Opcodes.isTerminator(op) && block.end < code.length) {
+                block.successors.add(blockOfOffset[block.end]);
+            }
+            for (int i = 0; i < block.pushedTargets.size(); i++) {
+                block.pushedTargets.set(i, blockOfOffset[block.pushedTargets.get(i)]);
+            }
+        }
+    }
+
+    //target of the PUSH right in front of the block's last instruction, -1 if there is none
+    private int staticTarget(Block block) {
+        int previous = -1;
+        for (int pc = block.start; pc < block.last; pc = Opcodes.next(code, pc)) {
+            previous = pc;
+        }
+        if (previous < 0 || !Opcodes.isPush(code[previous] & 0xFF) || Opcodes.immediateSize(code[previous] & 0xFF) > 4) {
+            return -1;
+        }
+        long value = Opcodes.pushValue(code, previous);
+        return value < code.length ? (int) value : -1;
+    }
+
+    public byte[] code() {
+        return code;
+    }
+
+    public List<Block> blocks() {
+        return Collections.unmodifiableList(blocks);
+    }
+
+    /**
+     * Block containing the offset
+     */
+    public Block blockAt(int offset) {
+        return blocks.get(blockOfOffset[offset]);
+    }
+
+    /**
+     * Blocks reachable from the entry blocks, stop blocks are neither entered nor expanded
+     * @param stop may be null
+     */
+    public boolean[] reachable(List<Integer> entries, boolean[] stop) {
+        boolean[] seen = new boolean[blocks.size()];
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int entry : entries) {
+            if (!seen[entry] && (stop == null || !stop[entry])) {
+                seen[entry] = true;
+                queue.add(entry);
+            }
+        }
+        while (!queue.isEmpty()) {
+            Block block = blocks.get(queue.poll());
+            for (List<Integer> next : Arrays.asList(block.successors, block.pushedTargets)) {
+                for (int b : next) {
+                    if (!seen[b] && (stop == null || !stop[b])) {
+                        seen[b] = true;
+                        queue.add(b);
+                    }
+                }
+            }
+        }
+        return seen;
+    }
+
+    //tested
+    public static void main(String[] args) {
+        //PUSH1 1 PUSH1 6 JUMPI STOP | JUMPDEST STOP
+        ControlFlowGraph cfg = new ControlFlowGraph(HexCodec.decode("6001600657005b00"));
+        System.out.println(cfg.blocks());
+    }
+}
@@ -0,0 +1,317 @@
+package utils;
+
+import cn.hutool.json.JSONArray;
+import cn.hutool.json.JSONObject;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import static obfuscationmethods.InstructionOrderRearrangeConfuse.constructIndependentInstruction;
+
+/**
+ * Corpus profiler: scans every .hex file of a dataset directory in parallel and reports how the
+ * runtime sections are shaped (opcode histogram, jump density, insertion sites per InsertIndex
+ * category, independent instructions for OrderRearrange).
+ * Files are memory-mapped and decoded without a heap copy, every worker thread fills its own
+ * primitive counters and the counters are merged once at the end.
+ *
+ * usage: CorpusProfiler [datasetDir | corpusFile] [reportPrefix]  -> reportPrefix.json and reportPrefix.csv
+ */
+public class CorpusProfiler {
+
+    private static final int[] ENV_OPCODES = envOpcodes();
+    //whether an opcode is one of ENV_OPCODES, so other opcodes skip the scan
+    private static final boolean[] ENV = new boolean[256];
+
+    static {
+        for (int op : ENV_OPCODES) {
+            ENV[op] = true;
+        }
+    }
+
+    /**
+     * Counters of one worker, merged into the final result
+     */
+    static class Counters {
+        long files;
+        long failed;
+        long bytes;
+        long runtimeBytes;
+        long instructions;
+        final long[] histogram = new long[256];
+        final long[] sites = new long[InsertIndex.SITE_OPCODES.length];
+        final long[] env = new long[ENV_OPCODES.length];
+        final List<ContractProfile> contracts = new ArrayList<>();
+        final List<String> errors = new ArrayList<>();
+
+        void accept(Path file) {
+            String name = file.getFileName().toString();
+            try {
+                byte[] bytecode = mapAndDecode(file);
+                accept(name, bytecode, ByteCodeCleanAndRecovry.runtimeRange(bytecode));
+            } catch (IllegalArgumentException | UncheckedIOException e) {
+                failed++;
+                errors.add(name + ": " + e.getMessage());
+            }
+        }
+
+        //profiled from the mapped corpus, nothing is copied
+        void accept(ByteCodeCorpus.Entry entry) {
+            accept(entry.name, entry.code, new int[]{entry.runtimeStart, entry.runtimeEnd});
+        }
+
+        void accept(String name, byte[] bytecode, int[] range) {
+            accept(name, ByteBuffer.wrap(bytecode), range);
+        }
+
+        void accept(String name, ByteBuffer bytecode, int[] range) {
+            ContractProfile profile = profile(name, bytecode, range[0], range[1], histogram);
+            files++;
+            bytes += bytecode.remaining();
+            runtimeBytes += profile.runtimeBytes;
+            instructions += profile.instructions;
+            for (int i = 0; i < sites.length; i++) {
+                sites[i] += profile.sites[i];
+            }
+            for (int i = 0; i < env.length; i++) {
+                env[i] += profile.env[i];
+            }
+            contracts.add(profile);
+        }
+
+        void merge(Counters other) {
+            files += other.files;
+            failed += other.failed;
+            bytes += other.bytes;
+            runtimeBytes += other.runtimeBytes;
+            instructions += other.instructions;
+            for (int i = 0; i < 256; i++) {
+                histogram[i] += other.histogram[i];
+            }
+            for (int i = 0; i < sites.length; i++) {
+                sites[i] += other.sites[i];
+            }
+            for (int i = 0; i < env.length; i++) {
+                env[i] += other.env[i];
+            }
+            contracts.addAll(other.contracts);
+            errors.addAll(other.errors);
+        }
+    }
+
+    /**
+     * Shape of one contract's runtime section
+     */
+    static class ContractProfile {
+        String name;
+        int runtimeBytes;
+        int instructions;
+        int jumps;
+        int jumpis;
+        int jumpdests;
+        final int[] sites = new int[InsertIndex.SITE_OPCODES.length];
+        final int[] env = new int[ENV_OPCODES.length];
+
+        int siteTotal() {
+            int total = 0;
+            for (int site : sites) {
+                total += site;
+            }
+            return total;
+        }
+
+        int envTotal() {
+            int total = 0;
+            for (int e : env) {
+                total += e;
+            }
+            return total;
+        }
+    }
+
+    private static int[] envOpcodes() {
+        String[] independent = constructIndependentInstruction();
+        int[] opcodes = new int[independent.length];
+        for (int i = 0; i < independent.length; i++) {
+            opcodes[i] = Integer.parseInt(independent[i], 16);
+        }
+        return opcodes;
+    }
+
+    static byte[] mapAndDecode(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int end = buf.limit();
+            while (end > 0 && buf.get(end - 1) <= ' ') {
+                end--;
+            }
+            buf.limit(end);
+            return HexCodec.decode(buf);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Walk the instructions of code[from, to) (relative to the position of code) and count them,
+     * histogram is added to in place
+     */
+    static ContractProfile profile(String name, ByteBuffer code, int from, int to, long[] histogram) {
+        ContractProfile p = new ContractProfile();
+        p.name = name;
+        p.runtimeBytes = to - from;
+        int base = code.position();
+        for (int pc = from; pc < to; pc += 1 + Opcodes.immediateSize(code.get(base + pc) & 0xFF)) {
+            int op = code.get(base + pc) & 0xFF;
+            histogram[op]++;
+            p.instructions++;
+            if (op == Opcodes.JUMP) {
+                p.jumps++;
+            } else if (op == Opcodes.JUMPI) {
+                p.jumpis++;
+            } else if (op == Opcodes.JUMPDEST) {
+                p.jumpdests++;
+            }
+            int category = InsertIndex.siteCategory(op);
+            if (category >= 0) {
+                p.sites[category]++;
+            }
+            if (ENV[op]) {
+                for (int i = 0; i < ENV_OPCODES.length; i++) {
+                    if (ENV_OPCODES[i] == op) {
+                        p.env[i]++;
+                        break;
+                    }
+                }
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Profile every contract of a packed corpus
+     */
+    public static Counters profileCorpus(ByteCodeCorpus corpus) {
+        Counters counters = corpus.entries().parallel().collect(Counters::new, Counters::accept, Counters::merge);
+        counters.contracts.sort(Comparator.comparing(c -> c.name));
+        return counters;
+    }
+
+    /**
+     * Profile every .hex file of a directory
+     */
+    public static Counters profileDirectory(Path dir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.hex")) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Counters counters = files.parallelStream().collect(Counters::new, Counters::accept, Counters::merge);
+        counters.contracts.sort(Comparator.comparing(c -> c.name));
+        return counters;
+    }
+
+    static JSONObject toJson(Counters c, long millis) {
+        JSONObject report = new JSONObject(true);
+        report.set("files", c.files);
+        report.set("failed", c.failed);
+        report.set("millis", millis);
+        report.set("bytes", c.bytes);
+        report.set("runtimeBytes", c.runtimeBytes);
+        report.set("instructions", c.instructions);
+        long jumps = c.histogram[Opcodes.JUMP] + c.histogram[Opcodes.JUMPI];
+        report.set("jumpDensity", c.instructions == 0 ? 0 : (double) jumps / c.instructions);
+
+        JSONObject histogram = new JSONObject(true);
+        Integer[] order = new Integer[256];
+        for (int i = 0; i < 256; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(c.histogram[b], c.histogram[a]));
+        for (int op : order) {
+            if (c.histogram[op] > 0) {
+                histogram.set(Opcodes.name(op), c.histogram[op]);
+            }
+        }
+        report.set("opcodes", histogram);
+
+        JSONObject sites = new JSONObject(true);
+        for (int i = 0; i < c.sites.length; i++) {
+            sites.set(HexCodec.byteString(InsertIndex.SITE_OPCODES[i]), c.sites[i]);
+        }
+        report.set("insertionSites", sites);
+
+        JSONObject env = new JSONObject(true);
+        for (int i = 0; i < c.env.length; i++) {
+            env.set(Opcodes.name(ENV_OPCODES[i]), c.env[i]);
+        }
+        report.set("independentInstructions", env);
+
+        int n = c.contracts.size();
+        int[] runtime = new int[n];
+        int[] siteTotals = new int[n];
+        for (int i = 0; i < n; i++) {
+            runtime[i] = c.contracts.get(i).runtimeBytes;
+            siteTotals[i] = c.contracts.get(i).siteTotal();
+        }
+        report.set("runtimeBytesPercentiles", percentiles(runtime));
+        report.set("sitesPerContractPercentiles", percentiles(siteTotals));
+        report.set("errors", new JSONArray(c.errors));
+        return report;
+    }
+
+    static JSONObject percentiles(int[] values) {
+        int[] sorted = values.clone();
+        Arrays.sort(sorted);
+        JSONObject p = new JSONObject(true);
+        for (int q : new int[]{0, 50, 90, 99, 100}) {
+            p.set("p" + q, sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, q * sorted.length / 100)]);
+        }
+        return p;
+    }
+
+    static String toCsv(Counters c) {
+        StringBuilder sb = new StringBuilder("file,runtimeBytes,instructions,jump,jumpi,jumpdest");
+        for (int op : InsertIndex.SITE_OPCODES) {
+            sb.append(",site_").append(HexCodec.byteString(op));
+        }
+        sb.append(",sites,sitesPerKB,independent\n");
+        for (ContractProfile p : c.contracts) {
+            sb.append(p.name).append(',').append(p.runtimeBytes).append(',').append(p.instructions)
+                    .append(',').append(p.jumps).append(',').append(p.jumpis).append(',').append(p.jumpdests);
+            for (int site : p.sites) {
+                sb.append(',').append(site);
+            }
+            double perKb = p.runtimeBytes == 0 ? 0 : p.siteTotal() * 1024.0 / p.runtimeBytes;
+            sb.append(',').append(p.siteTotal()).append(',').append(String.format("%.2f", perKb))
+                    .append(',').append(p.envTotal()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Paths.get(args.length > 0 ? args[0] : "../Solidity bytecode dataset");
+        String prefix = args.length > 1 ? args[1] : "corpus-profile";
+        long start = System.currentTimeMillis();
+        //a packed corpus (ByteCodeCorpus) is profiled without decoding any hex
+        Counters counters = Files.isDirectory(dir) ? profileDirectory(dir) : profileCorpus(ByteCodeCorpus.open(dir));
+        long millis = System.currentTimeMillis() - start;
+        Files.write(Paths.get(prefix + ".json"), toJson(counters, millis).toStringPretty().getBytes(StandardCharsets.UTF_8));
+        Files.write(Paths.get(prefix + ".csv"), toCsv(counters).getBytes(StandardCharsets.UTF_8));
+        System.out.println("profiled " + counters.files + " files (" + counters.failed + " failed) in " + millis + "ms");
+    }
+}
@@ -0,0 +1,223 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Recognizes the Solidity function dispatcher of a runtime section,
+ * PUSH4 selector (DUPn) EQ PUSH1/PUSH2 target JUMPI, and maps every selector to the basic blocks
+ * reachable from its entry. Used to keep hot external functions free of obfuscation code.
+ */
+public class DispatcherAnalyzer {
+
+    /**
+     * One selector comparison of the dispatcher
+     */
+    public static final class Entry {
+        //8 lowercase hex digits
+        public final String selector;
+        //offset of the PUSH4 selector
+        public final int pushOffset;
+        //offset of the PUSH of the target
+        public final int targetPushOffset;
+        public final int jumpiOffset;
+        public final int target;
+
+        Entry(String selector, int pushOffset, int targetPushOffset, int jumpiOffset, int target) {
+            this.selector = selector;
+            this.pushOffset = pushOffset;
+            this.targetPushOffset = targetPushOffset;
+            this.jumpiOffset = jumpiOffset;
+            this.target = target;
+        }
+
+        @Override
+        public String toString() {
+            return "0x" + selector + "->" + target;
+        }
+    }
+
+    private final ControlFlowGraph cfg;
+    private final List<Entry> entries;
+    //selector -> blocks reachable from its entry
+    private final Map<String, boolean[]> reachable = new LinkedHashMap<>();
+    //blocks every call runs through before it reaches a function entry
+    private final boolean[] dispatcherBlocks;
+
+    public DispatcherAnalyzer(byte[] code) {
+        this(new ControlFlowGraph(code));
+    }
+
+    public DispatcherAnalyzer(ControlFlowGraph cfg) {
+        this.cfg = cfg;
+        this.entries = findEntries(cfg.code());
+        int blocks = cfg.blocks().size();
+        boolean[] entryBlocks = new boolean[blocks];
+        for (Entry entry : entries) {
+            entryBlocks[cfg.blockAt(entry.target).index] = true;
+        }
+        for (Entry entry : entries) {
+            int block = cfg.blockAt(entry.target).index;
+            boolean[] seen = cfg.reachable(Collections.singletonList(block), null);
+            boolean[] old = reachable.get(entry.selector);
+            if (old != null) {
+                for (int i = 0; i < blocks; i++) {
+                    seen[i] |= old[i];
+                }
+            }
+            reachable.put(entry.selector, seen);
+        }
+        this.dispatcherBlocks = blocks == 0 ? new boolean[0]
+                : cfg.reachable(Collections.singletonList(0), entryBlocks);
+    }
+
+    /**
+     * Selector comparisons of the code, in code order
+     */
+    public static List<Entry> findEntries(byte[] code) {
+        List<Integer> pcs = new ArrayList<>();
+        for (int pc = 0; pc < code.length; pc = Opcodes.next(code, pc)) {
+            pcs.add(pc);
+        }
+        List<Entry> rs = new ArrayList<>();
+        for (int i = 0; i + 3 < pcs.size(); i++) {
+            int pc = pcs.get(i);
+            if ((code[pc] & 0xFF) != Opcodes.PUSH4 || pc + 4 >= code.length) {
+                continue;
+            }
+            int j = i + 1;
+            int op = code[pcs.get(j)] & 0xFF;
+            if (op >= Opcodes.DUP1 && op < Opcodes.SWAP1) {
+                j++;
+            }
+            if (j + 2 >= pcs.size() || (code[pcs.get(j)] & 0xFF) != Opcodes.EQ) {
+                continue;
+            }
+            int push = pcs.get(j + 1);
+            int pushOp = code[push] & 0xFF;
+            if (pushOp != Opcodes.PUSH1 && pushOp != Opcodes.PUSH2 || (code[pcs.get(j + 2)] & 0xFF) != Opcodes.JUMPI) {
+                continue;
+            }
+            long target = Opcodes.pushValue(code, push);
+            if (target >= code.length || (code[(int) target] & 0xFF) != Opcodes.JUMPDEST) {
+                continue;
+            }
+            String selector = HexCodec.encode(new byte[]{code[pc + 1], code[pc + 2], code[pc + 3], code[pc + 4]});
+            rs.add(new Entry(selector, pc, push, pcs.get(j + 2), (int) target));
+        }
+        return rs;
+    }
+
+    /**
+     * "0xA9059CBB" / "a9059cbb" -> "a9059cbb"
+     */
+    public static String normalizeSelector(String selector) {
+        String s = selector.trim().toLowerCase();
+        if (s.startsWith("0x")) {
+            s = s.substring(2);
+        }
+        if (s.length() != 8) {
+            throw new IllegalArgumentException("selector must be 4 bytes of hex: " + selector);
+        }
+        HexCodec.decode(s);
+        return s;
+    }
+
+    public ControlFlowGraph cfg() {
+        return cfg;
+    }
+
+    public List<Entry> entries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Blocks reachable from the entry of a selector, null if the dispatcher has no such selector
+     */
+    public boolean[] reachableBlocks(String selector) {
+        return reachable.get(normalizeSelector(selector));
+    }
+
+    public boolean[] dispatcherBlocks() {
+        return dispatcherBlocks;
+    }
+
+    /**
+     * Offsets obfuscation code may go to.
+     * With include selectors only blocks reachable from one of them qualify, and every selector that is
+     * not included counts as excluded. The blocks reachable from excluded selectors (code shared with
+     * them included) and the dispatcher itself (every call runs through it) are left alone.
+     * Selectors the dispatcher does not have are ignored.
+     */
+    public boolean[] eligibleOffsets(Collection<String> include, Collection<String> exclude) {
+        int blocks = cfg.blocks().size();
+        boolean[] eligible = new boolean[blocks];
+        Set<String> excluded = new LinkedHashSet<>(exclude);
+        if (include.isEmpty()) {
+            Arrays.fill(eligible, true);
+        } else {
+            Set<String> included = new HashSet<>();
+            for (String selector : include) {
+                included.add(normalizeSelector(selector));
+                boolean[] seen = reachableBlocks(selector);
+                for (int i = 0; seen != null && i < blocks; i++) {
+                    eligible[i] |= seen[i];
+                }
+            }
+            for (String selector : reachable.keySet()) {
+                if (!included.contains(selector)) {
+                    excluded.add(selector);
+                }
+            }
+        }
+        if (!include.isEmpty() || !exclude.isEmpty()) {
+            for (int i = 0; i < blocks; i++) {
+                eligible[i] &= !dispatcherBlocks[i];
+            }
+            for (String selector : excluded) {
+                boolean[] seen = reachableBlocks(selector);
+                for (int i = 0; seen != null && i < blocks; i++) {
+                    eligible[i] &= !seen[i];
+                }
+            }
+        }
+        byte[] code = cfg.code();
+        boolean[] offsets = new boolean[code.length + 1];
+        for (ControlFlowGraph.Block block : cfg.blocks()) {
+            if (eligible[block.index]) {
+                Arrays.fill(offsets, block.start, block.end, true);
+            }
+        }
+        //the end of the code belongs to the last block
+        offsets[code.length] = blocks > 0 && eligible[blocks - 1];
+        return offsets;
+    }
+
+    //tested
+    public static void main(String[] args) {
+        //DUP1 PUSH4 a9059cbb EQ PUSH1 15 JUMPI STOP ... JUMPDEST STOP
+        byte[] code = HexCodec.decode("8063a9059cbb14600f5700000000005b00");
+        DispatcherAnalyzer analyzer = new DispatcherAnalyzer(code);
+        System.out.println(analyzer.entries());
+        System.out.println(Arrays.toString(analyzer.eligibleOffsets(
+                Collections.<String>emptyList(), Collections.singletonList("0xa9059cbb"))));
+        //two selectors, only the code of a9059cbb (the JUMPDEST at 24) may change
+        analyzer = new DispatcherAnalyzer(HexCodec.decode("8063a9059cbb146018578063" + "70a08231" + "14601b5700000000" + "5b00005b00"));
+        boolean[] eligible = analyzer.eligibleOffsets(Collections.singletonList("0xa9059cbb"), Collections.<String>emptyList());
+        List<Integer> offsets = new ArrayList<>();
+        for (int pc = 0; pc < eligible.length; pc++) {
+            if (eligible[pc]) {
+                offsets.add(pc);
+            }
+        }
+        System.out.println(analyzer.entries() + " include a9059cbb: " + offsets);
+    }
+}
@@ -0,0 +1,555 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Edit list over an original runtime section.
+ * Obfuscation methods stamp snippet templates at original offsets (in front of the instruction
+ * at that offset) and patch single opcodes, nothing is copied until layout() lays the result out
+ * and relocates every jump target in one go.
+ *
+ * Relocated jump targets are the PUSHes of any width StackFlow finds to point at a JUMPDEST and reach
+ * a jump destination without being used as data (call targets, return addresses), constants that merely
+ * equal a JUMPDEST are left alone. A relocated PUSH is widened when its new target no longer fits.
+ *
+ * Optimizations additionally delete original instructions, retarget relocated PUSHes and let
+ * relocated PUSHes narrow to the width their new target needs.
+ *
+ * layout(regions, executor) writes the code of every region of the original on the executor once the
+ * new offsets are placed for the whole code, the result is the same as layout()'s.
+ */
+public class EditBuffer {
+
+    public enum Kind {INSERT, PATCH, DELETE, RETARGET, NARROW}
+
+    /**
+     * One stamped template, patched opcode, deleted instruction, retargeted or narrowed PUSH
+     */
+    public static final class Edit {
+        public final Kind kind;
+        public final int offset;
+        public final SnippetTemplate template;
+        //INSERT slot values: ABSOLUTE -> original target offset, RANDOM_IMMEDIATE -> value, SELF_RELATIVE unused
+        //RETARGET: {original target offset}
+        public final long[] values;
+        public final int opcode;
+
+        Edit(Kind kind, int offset, SnippetTemplate template, long[] values, int opcode) {
+            this.kind = kind;
+            this.offset = offset;
+            this.template = template;
+            this.values = values;
+            this.opcode = opcode;
+        }
+
+        public boolean isInsert() {
+            return kind == Kind.INSERT;
+        }
+    }
+
+    /**
+     * Laid out code and where everything went
+     */
+    public static final class Layout {
+        public byte[] code;
+        //new offset of every original offset, newOffsets[original.length] == code.length
+        public int[] newOffsets;
+        //new offset of the first byte of every edit (patches: of the patched byte), in edit log order
+        public int[] editStarts;
+        //original PUSH offset -> original offset its laid out value points at (retargets applied),
+        //-1 if the PUSH is not relocated or deleted
+        public int[] targets;
+        public int insertedBytes;
+        public int relocatedJumps;
+        public int widenedPushes;
+        public int narrowedPushes;
+        public int deletedBytes;
+        private StackFlow flow;
+        //the code flow describes
+        private byte[] flowCode;
+
+        /**
+         * StackFlow of the laid out code, run once and shared by the validator, the report and the
+         * EditBuffer of the next pass
+         */
+        public StackFlow flow() {
+            if (flow == null || flowCode != code) {
+                flow = new StackFlow(code);
+                flowCode = code;
+            }
+            return flow;
+        }
+    }
+
+    private final byte[] original;
+    private final boolean[] starts;
+    private final int[] jumpdests;
+    //original PUSH offset -> original target offset, -1 if the PUSH is not relocated
+    private final int[] refTargets;
+    private final StackFlow flow;
+    private final List<Edit> edits = new ArrayList<>();
+
+    public EditBuffer(byte[] original) {
+        this(original, new StackFlow(original));
+    }
+
+    /**
+     * Buffer over code whose StackFlow already ran, e.g. Layout.flow() of the pass before
+     */
+    public EditBuffer(byte[] original, StackFlow flow) {
+        if (flow.code() != original && !Arrays.equals(flow.code(), original)) {
+            throw new IllegalArgumentException("the stack flow describes other code");
+        }
+        this.original = original;
+        this.flow = flow;
+        this.starts = Opcodes.instructionStarts(original, 0, original.length);
+        boolean[] isJumpdest = new boolean[original.length];
+        int count = 0;
+        for (int pc = 0; pc < original.length; pc = Opcodes.next(original, pc)) {
+            if ((original[pc] & 0xFF) == Opcodes.JUMPDEST) {
+                isJumpdest[pc] = true;
+                count++;
+            }
+        }
+        this.jumpdests = new int[count];
+        count = 0;
+        for (int pc = 0; pc < original.length; pc++) {
+            if (isJumpdest[pc]) {
+                jumpdests[count++] = pc;
+            }
+        }
+        this.refTargets = new int[original.length];
+        for (int pc = 0; pc < original.length; pc++) {
+            refTargets[pc] = starts[pc] ? flow.jumpTarget(pc) : -1;
+        }
+    }
+
+    public byte[] original() {
+        return original;
+    }
+
+    /**
+     * StackFlow of the original code
+     */
+    public StackFlow flow() {
+        return flow;
+    }
+
+    public boolean isInstructionStart(int offset) {
+        return offset == original.length || (offset >= 0 && offset < original.length && starts[offset]);
+    }
+
+    /**
+     * JUMPDEST offsets of the original code, ascending - do not modify
+     */
+    public int[] jumpdests() {
+        return jumpdests;
+    }
+
+    /**
+     * Original jump target of the PUSH at offset, -1 if it is not relocated
+     */
+    public int jumpTarget(int offset) {
+        return refTargets[offset];
+    }
+
+    /**
+     * Stamp a template in front of the original instruction at offset
+     * @param values one value per slot, see Edit.values
+     */
+    public void insert(int offset, SnippetTemplate template, long[] values) {
+        if (!isInstructionStart(offset)) {
+            throw new IllegalArgumentException("offset " + offset + " is not an instruction boundary");
+        }
+        if (values.length != template.slots().length) {
+            throw new IllegalArgumentException(template.getName() + " has " + template.slots().length + " slots");
+        }
+        edits.add(new Edit(Kind.INSERT, offset, template, values, -1));
+    }
+
+    /**
+     * Stamp a template, random immediates are drawn from random and absolute targets are random
+     * JUMPDESTs of the original code
+     * @throws IllegalStateException if the template has an absolute target and the code no JUMPDEST
+     */
+    public void stamp(int offset, SnippetTemplate template, Random random) {
+        SnippetTemplate.Slot[] slots = template.slots();
+        long[] values = new long[slots.length];
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i].kind == SnippetTemplate.SlotKind.RANDOM_IMMEDIATE) {
+                values[i] = slots[i].width >= 8 ? random.nextLong() : random.nextLong() & ((1L << (8 * slots[i].width)) - 1);
+            } else if (slots[i].kind == SnippetTemplate.SlotKind.ABSOLUTE) {
+                if (jumpdests.length == 0) {
+                    throw new IllegalStateException(template.getName() + " needs a JUMPDEST to point at");
+                }
+                values[i] = jumpdests[random.nextInt(jumpdests.length)];
+            }
+        }
+        insert(offset, template, values);
+    }
+
+    /**
+     * Replace the opcode of the original instruction at offset, the instruction length must not change
+     */
+    public void patch(int offset, int opcode) {
+        if (!starts[offset] || Opcodes.immediateSize(opcode) != Opcodes.immediateSize(original[offset] & 0xFF)) {
+            throw new IllegalArgumentException("cannot patch offset " + offset + " to " + Opcodes.name(opcode));
+        }
+        edits.add(new Edit(Kind.PATCH, offset, null, null, opcode));
+    }
+
+    /**
+     * Remove the original instruction at offset. Nothing may jump to it any more.
+     */
+    public void delete(int offset) {
+        if (offset >= original.length || !starts[offset]) {
+            throw new IllegalArgumentException("offset " + offset + " is not an instruction");
+        }
+        edits.add(new Edit(Kind.DELETE, offset, null, null, -1));
+    }
+
+    /**
+     * Let the relocated PUSH at offset jump to another JUMPDEST of the original code
+     */
+    public void retarget(int offset, int target) {
+        if (refTargets[offset] < 0 || Arrays.binarySearch(jumpdests, target) < 0) {
+            throw new IllegalArgumentException("cannot retarget offset " + offset + " to " + target);
+        }
+        edits.add(new Edit(Kind.RETARGET, offset, null, new long[]{target}, -1));
+    }
+
+    /**
+     * Lay the relocated PUSH at offset out with the fewest bytes its new target needs instead of
+     * at least its original width. StackFlow still finds a narrowed return address in a later run
+     * since it is recognized by where its value goes, not by its width.
+     */
+    public void narrow(int offset) {
+        if (refTargets[offset] < 0) {
+            throw new IllegalArgumentException("offset " + offset + " is not a relocated PUSH");
+        }
+        edits.add(new Edit(Kind.NARROW, offset, null, null, -1));
+    }
+
+    /**
+     * Add edits made against the same original code (e.g. by another EditBuffer)
+     */
+    public void addAll(List<Edit> more) {
+        edits.addAll(more);
+    }
+
+    public List<Edit> edits() {
+        return Collections.unmodifiableList(edits);
+    }
+
+    /**
+     * Position in the edit log, to roll back to later
+     */
+    public int mark() {
+        return edits.size();
+    }
+
+    /**
+     * Drop every edit made after mark
+     */
+    public void rollback(int mark) {
+        edits.subList(mark, edits.size()).clear();
+    }
+
+    public byte[] apply() {
+        return layout().code;
+    }
+
+    public Layout layout() {
+        return layout(new int[]{0}, null);
+    }
+
+    /**
+     * Lay out with the code of every region written on the executor (null: one after another)
+     * @param regions original offsets the regions start at, ascending instruction starts, the first 0
+     */
+    public Layout layout(int[] regions, ExecutorService executor) {
+        int n = original.length;
+        Integer[] order = new Integer[edits.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        //stable: edits at the same offset keep their log order
+        Arrays.sort(order, (a, b) -> Integer.compare(edits.get(a).offset, edits.get(b).offset));
+
+        int[] targets = refTargets.clone();
+        boolean[] deleted = new boolean[n];
+        int[] width = new int[n];
+        for (int pc = 0; pc < n; pc++) {
+            if (refTargets[pc] >= 0) {
+                width[pc] = Opcodes.immediateSize(original[pc] & 0xFF);
+            }
+        }
+        for (Edit edit : edits) {
+            if (edit.kind == Kind.DELETE) {
+                deleted[edit.offset] = true;
+            } else if (edit.kind == Kind.RETARGET) {
+                targets[edit.offset] = (int) edit.values[0];
+            } else if (edit.kind == Kind.NARROW) {
+                width[edit.offset] = 1;
+            }
+        }
+        Layout layout = new Layout();
+        layout.newOffsets = new int[n + 1];
+        layout.editStarts = new int[edits.size()];
+        int size;
+        boolean changed;
+        do {
+            size = place(order, width, deleted, layout);
+            changed = false;
+            for (int pc = 0; pc < n; pc++) {
+                if (targets[pc] >= 0 && !deleted[pc]) {
+                    if (deleted[targets[pc]]) {
+                        throw new IllegalStateException("offset " + pc + " jumps to deleted offset " + targets[pc]);
+                    }
+                    int need = bytesNeeded(layout.newOffsets[targets[pc]]);
+                    if (need > width[pc]) {
+                        width[pc] = need;
+                        changed = true;
+                    }
+                }
+            }
+        } while (changed);
+
+        byte[] code = new byte[size];
+        //first edit and first byte of every region: the snippets stamped at its start come before it
+        int[] firstEdit = new int[regions.length];
+        int[] firstPos = new int[regions.length];
+        int e = 0;
+        for (int r = 0; r < regions.length; r++) {
+            if (regions[r] < 0 || regions[r] > n || (regions[r] < n && !starts[regions[r]])
+                    || (r == 0 ? regions[r] != 0 : regions[r] <= regions[r - 1])) {
+                throw new IllegalArgumentException("region " + r + " does not start at an instruction: " + regions[r]);
+            }
+            while (e < order.length && edits.get(order[e]).offset < regions[r]) {
+                e++;
+            }
+            firstEdit[r] = e;
+            firstPos[r] = layout.newOffsets[regions[r]];
+            for (int k = e; k < order.length && edits.get(order[k]).offset == regions[r]; k++) {
+                if (edits.get(order[k]).isInsert()) {
+                    firstPos[r] -= edits.get(order[k]).template.length();
+                }
+            }
+        }
+        //inserted bytes, relocated jumps, widened pushes, narrowed pushes, deleted bytes of every region
+        int[][] counts = new int[regions.length][5];
+        if (executor == null || regions.length == 1) {
+            for (int r = 0; r < regions.length; r++) {
+                int end = r + 1 < regions.length ? regions[r + 1] : n + 1;
+                write(regions[r], end, firstEdit[r], firstPos[r], order, targets, width, deleted, layout, code, counts[r]);
+            }
+        } else {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int r = 0; r < regions.length; r++) {
+                int start = regions[r];
+                int end = r + 1 < regions.length ? regions[r + 1] : n + 1;
+                int first = firstEdit[r];
+                int pos = firstPos[r];
+                int[] count = counts[r];
+                futures.add(executor.submit(() -> write(start, end, first, pos, order, targets, width, deleted, layout, code, count)));
+            }
+            //wait for every region, then fail like the first failed region would have on its own
+            RuntimeException failure = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    if (failure == null) {
+                        failure = ex.getCause() instanceof RuntimeException ? (RuntimeException) ex.getCause()
+                                : new IllegalStateException(ex.getCause());
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("interrupted while writing the regions", ex);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+        for (int[] count : counts) {
+            layout.insertedBytes += count[0];
+            layout.relocatedJumps += count[1];
+            layout.widenedPushes += count[2];
+            layout.narrowedPushes += count[3];
+            layout.deletedBytes += count[4];
+        }
+        for (int pc = 0; pc < n; pc++) {
+            if (deleted[pc]) {
+                targets[pc] = -1;
+            }
+        }
+        layout.targets = targets;
+        layout.code = code;
+        if (edits.isEmpty()) {
+            //same bytes as the original
+            layout.flow = flow;
+            layout.flowCode = code;
+        }
+        return layout;
+    }
+
+    //write the original offsets [start, end) and the edits at them from pos on, end n + 1 includes the edits at the end
+    private void write(int start, int end, int e, int pos, Integer[] order, int[] targets, int[] width,
+                       boolean[] deleted, Layout layout, byte[] code, int[] counts) {
+        int n = original.length;
+        for (int pc = start; pc < end; pc++) {
+            int patched = -1;
+            for (; e < order.length && edits.get(order[e]).offset == pc; e++) {
+                Edit edit = edits.get(order[e]);
+                if (!edit.isInsert()) {
+                    if (edit.kind == Kind.PATCH) {
+                        patched = edit.opcode;
+                    }
+                    continue;
+                }
+                byte[] snippet = edit.template.code();
+                System.arraycopy(snippet, 0, code, pos, snippet.length);
+                SnippetTemplate.Slot[] slots = edit.template.slots();
+                for (int s = 0; s < slots.length; s++) {
+                    long value;
+                    if (slots[s].kind == SnippetTemplate.SlotKind.SELF_RELATIVE) {
+                        value = pos + slots[s].addend;
+                    } else if (slots[s].kind == SnippetTemplate.SlotKind.ABSOLUTE) {
+                        if ((int) edit.values[s] < n && deleted[(int) edit.values[s]]) {
+                            throw new IllegalStateException(edit.template.getName() + " jumps to deleted offset " + edit.values[s]);
+                        }
+                        value = layout.newOffsets[(int) edit.values[s]];
+                    } else {
+                        value = edit.values[s];
+                    }
+                    if (slots[s].width < 8 && value >>> (8 * slots[s].width) != 0) {
+                        throw new IllegalStateException("slot value 0x" + Long.toHexString(value) + " of "
+                                + edit.template.getName() + " does not fit in " + slots[s].width + " bytes");
+                    }
+                    putBigEndian(code, pos + slots[s].offset, slots[s].width, value);
+                }
+                pos += snippet.length;
+                counts[0] += snippet.length;
+            }
+            if (pc == n) {
+                break;
+            }
+            int op = patched >= 0 ? patched : original[pc] & 0xFF;
+            if (deleted[pc]) {
+                counts[4] += 1 + Opcodes.immediateSize(op);
+                pc += Opcodes.immediateSize(op);
+            } else if (targets[pc] >= 0) {
+                int target = layout.newOffsets[targets[pc]];
+                code[pos] = (byte) (Opcodes.PUSH0 + width[pc]);
+                putBigEndian(code, pos + 1, width[pc], target);
+                if (target != refTargets[pc] || width[pc] != Opcodes.immediateSize(op)) {
+                    counts[1]++;
+                }
+                if (width[pc] > Opcodes.immediateSize(op)) {
+                    counts[2]++;
+                } else if (width[pc] < Opcodes.immediateSize(op)) {
+                    counts[3]++;
+                }
+                pos += 1 + width[pc];
+                pc += Opcodes.immediateSize(op);
+            } else {
+                code[pos++] = (byte) op;
+            }
+        }
+    }
+
+    //assign new offsets to original bytes and edits for the current push widths, returns the code size
+    private int place(Integer[] order, int[] width, boolean[] deleted, Layout layout) {
+        int n = original.length;
+        int pos = 0;
+        int e = 0;
+        for (int pc = 0; pc <= n; pc++) {
+            for (; e < order.length && edits.get(order[e]).offset == pc; e++) {
+                Edit edit = edits.get(order[e]);
+                layout.editStarts[order[e]] = pos;
+                if (edit.isInsert()) {
+                    pos += edit.template.length();
+                }
+            }
+            if (pc == n) {
+                break;
+            }
+            layout.newOffsets[pc] = pos;
+            if (deleted[pc]) {
+                int size = Opcodes.immediateSize(original[pc] & 0xFF);
+                for (int k = 1; k <= size && pc + k < n; k++) {
+                    layout.newOffsets[pc + k] = pos;
+                }
+                pc += size;
+            } else if (refTargets[pc] >= 0) {
+                int size = Opcodes.immediateSize(original[pc] & 0xFF);
+                for (int k = 1; k <= size; k++) {
+                    layout.newOffsets[pc + k] = pos + Math.min(k, width[pc]);
+                }
+                pos += 1 + width[pc];
+                pc += size;
+            } else {
+                pos++;
+            }
+        }
+        layout.newOffsets[n] = pos;
+        for (int i = 0; i < edits.size(); i++) {
+            if (!edits.get(i).isInsert()) {
+                layout.editStarts[i] = layout.newOffsets[edits.get(i).offset];
+            }
+        }
+        return pos;
+    }
+
+    private static int bytesNeeded(long value) {
+        int bytes = 1;
+        while (value >>> (8 * bytes) != 0) {
+            bytes++;
+        }
+        return bytes;
+    }
+
+    private static void putBigEndian(byte[] code, int at, int width, long value) {
+        for (int i = width - 1; i >= 0; i--) {
+            code[at + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    //tested
+    public static void main(String[] args) {
+        //PUSH1 6 JUMP STOP STOP STOP JUMPDEST STOP
+        EditBuffer buf = new EditBuffer(HexCodec.decode("600656000000" + "5b00"));
+        buf.stamp(3, SnippetTemplates.get(SnippetTemplates.INCOMPLETE + ".add"), new Random(1));
+        Layout layout = buf.layout();
+        System.out.println(HexCodec.encode(layout.code) + " relocated:" + layout.relocatedJumps);
+        Checks.check(layout.relocatedJumps == 1 && Opcodes.pushValue(layout.code, 0) == layout.newOffsets[6]
+                && Checks.jumpdestAt(layout.code, layout.newOffsets[6]), "jump target relocated");
+        //PUSH1 7 (return address) PUSH1 9 JUMP PUSH1 0 | JUMPDEST STOP | JUMPDEST JUMP: both PUSHes move
+        buf = new EditBuffer(HexCodec.decode("600760095600005b005b56"));
+        buf.stamp(5, SnippetTemplates.get(SnippetTemplates.FLOWER + ".jump"), new Random(1));
+        layout = buf.layout();
+        System.out.println(HexCodec.encode(layout.code) + " return address -> " + layout.newOffsets[7]);
+        Checks.check(Opcodes.pushValue(layout.code, 0) == layout.newOffsets[7] && Checks.jumpdestAt(layout.code, layout.newOffsets[7]),
+                "return address relocated");
+        Checks.check(Opcodes.pushValue(layout.code, 2) == layout.newOffsets[9] && Checks.jumpdestAt(layout.code, layout.newOffsets[9]),
+                "call target relocated");
+        //PUSH2 0x0100 EXP: a constant equal to the JUMPDEST at 0x100 stays
+        byte[] code = new byte[0x102];
+        System.arraycopy(HexCodec.decode("61010060020a50"), 0, code, 0, 7);
+        code[0x100] = (byte) Opcodes.JUMPDEST;
+        buf = new EditBuffer(code);
+        buf.insert(0, SnippetTemplate.compile("change", "6001 50"), new long[0]);
+        byte[] out = buf.apply();
+        System.out.println(HexCodec.encode(Arrays.copyOf(out, 10)) + " constant kept");
+        Checks.check(Opcodes.pushValue(out, 3) == 0x100 && Checks.jumpdestAt(out, 0x103), "EXP operand kept");
+    }
+}
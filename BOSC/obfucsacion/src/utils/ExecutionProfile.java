@@ -0,0 +1,289 @@
+package utils;
+
+import cn.hutool.json.JSON;
+import cn.hutool.json.JSONArray;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Basic-block hotness of a runtime section, computed offline from execution data:
+ *   invocations.json of the differential test harness (one call per line, selector and gas_used)
+ *   structLogs traces (debug_traceTransaction output, one trace per file or one per line)
+ * Traces give exact block counts. Without traces every block reachable from a called selector
+ * counts the calls of that selector, the dispatcher counts every call.
+ *
+ * The profile also keeps the gas obfuscation code adds to every block. After a pass is laid out
+ * remap() carries the profile over to the new code, blocks keep the hotness they were profiled with.
+ */
+public class ExecutionProfile {
+
+    private final byte[] code;
+    //executions per offset of the profiled code, null once remapped
+    private long[] executions;
+    private boolean traced;
+    //selector -> {calls, calls with gas_used, sum of gas_used}
+    private final Map<String, long[]> invocations;
+
+    //profiled block of every offset of code, hotness and added gas per profiled block
+    private int[] blockOf;
+    private long[] hotness;
+    private long[] addedGas;
+
+    public ExecutionProfile(byte[] code) {
+        this.code = code;
+        this.executions = new long[code.length];
+        this.invocations = new LinkedHashMap<>();
+    }
+
+    private ExecutionProfile(byte[] code, ExecutionProfile from, int[] blockOf) {
+        this.code = code;
+        this.traced = from.traced;
+        this.invocations = from.invocations;
+        this.blockOf = blockOf;
+        this.hotness = from.hotness;
+        this.addedGas = from.addedGas;
+    }
+
+    public byte[] code() {
+        return code;
+    }
+
+    /**
+     * Read the call records of the differential test harness, the orig side is counted
+     */
+    public void addInvocations(String url) throws IOException {
+        for (JSONObject record : readJson(url)) {
+            JSONObject orig = record.getJSONObject("orig");
+            String selector = record.getStr("selector");
+            if (selector == null || orig != null && !"ok".equals(orig.getStr("status"))) {
+                continue;
+            }
+            addInvocation(selector, orig == null ? null : orig.getLong("gas_used"));
+        }
+    }
+
+    /**
+     * @param gasUsed null for calls without a transaction (eth_call)
+     */
+    public void addInvocation(String selector, Long gasUsed) {
+        checkCollecting();
+        long[] stats = invocations.computeIfAbsent(DispatcherAnalyzer.normalizeSelector(selector), k -> new long[3]);
+        stats[0]++;
+        if (gasUsed != null) {
+            stats[1]++;
+            stats[2] += gasUsed;
+        }
+    }
+
+    /**
+     * Read structLogs traces, a file holds one trace (possibly wrapped in "result"), one trace per line
+     * or a bare array of steps. Only steps at depth 1 are counted, deeper frames run other code.
+     */
+    public void addStructLogs(String url) throws IOException {
+        JSONArray steps = new JSONArray();
+        for (JSONObject trace : readJson(url)) {
+            JSONObject result = trace.getJSONObject("result");
+            if (trace.containsKey("pc")) {
+                steps.add(trace);
+            } else {
+                addStructLogs((result != null ? result : trace).getJSONArray("structLogs"));
+            }
+        }
+        addStructLogs(steps);
+    }
+
+    public void addStructLogs(JSONArray structLogs) {
+        if (structLogs == null) {
+            return;
+        }
+        for (int i = 0; i < structLogs.size(); i++) {
+            JSONObject step = structLogs.getJSONObject(i);
+            Integer depth = step.getInt("depth");
+            Integer pc = step.getInt("pc");
+            if (pc != null && (depth == null || depth == 1)) {
+                addExecution(pc);
+            }
+        }
+    }
+
+    /**
+     * Count one execution of the instruction at pc, pcs outside the code (metadata) are ignored
+     */
+    public void addExecution(int pc) {
+        checkCollecting();
+        if (pc >= 0 && pc < code.length) {
+            executions[pc]++;
+            traced = true;
+        }
+    }
+
+    /**
+     * Calls and average gas_used per selector
+     * @return selector -> {calls, average gas_used or -1}
+     */
+    public Map<String, long[]> invocationStats() {
+        Map<String, long[]> rs = new LinkedHashMap<>();
+        for (Map.Entry<String, long[]> entry : invocations.entrySet()) {
+            long[] stats = entry.getValue();
+            rs.put(entry.getKey(), new long[]{stats[0], stats[1] == 0 ? -1 : stats[2] / stats[1]});
+        }
+        return rs;
+    }
+
+    /**
+     * Executions of the block holding the offset, as profiled
+     */
+    public long hotness(int offset) {
+        freeze();
+        return hotness[block(offset)];
+    }
+
+    /**
+     * Gas added so far to the block holding the offset
+     */
+    public long addedGas(int offset) {
+        freeze();
+        return addedGas[block(offset)];
+    }
+
+    public void addGas(int offset, long gas) {
+        freeze();
+        addedGas[block(offset)] += gas;
+    }
+
+    //insertions at the end of the code belong to the last block
+    private int block(int offset) {
+        return blockOf[Math.max(0, Math.min(offset, blockOf.length - 1))];
+    }
+
+    /**
+     * Profile of the code the edits of buf were laid out to. Inserted snippets belong to the block of
+     * the instruction they were stamped in front of.
+     */
+    public ExecutionProfile remap(EditBuffer buf, EditBuffer.Layout layout) {
+        if (buf.original() != code) {
+            throw new IllegalArgumentException("the edit buffer does not edit the profiled code");
+        }
+        freeze();
+        int[] next = new int[layout.code.length];
+        int[] newOffsets = layout.newOffsets;
+        for (int pc = 0; pc < code.length; pc++) {
+            int end = pc + 1 < newOffsets.length ? newOffsets[pc + 1] : layout.code.length;
+            for (int i = newOffsets[pc]; i < end && i < next.length; i++) {
+                next[i] = blockOf[pc];
+            }
+        }
+        List<EditBuffer.Edit> edits = buf.edits();
+        for (int e = 0; e < edits.size(); e++) {
+            EditBuffer.Edit edit = edits.get(e);
+            if (edit.isInsert()) {
+                int block = block(edit.offset);
+                for (int i = 0; i < edit.template.length(); i++) {
+                    next[layout.editStarts[e] + i] = block;
+                }
+            }
+        }
+        return new ExecutionProfile(layout.code, this, next);
+    }
+
+    //ends collection: compute block hotness of the profiled code
+    private synchronized void freeze() {
+        if (hotness != null) {
+            return;
+        }
+        DispatcherAnalyzer analyzer = new DispatcherAnalyzer(code);
+        ControlFlowGraph cfg = analyzer.cfg();
+        int blocks = cfg.blocks().size();
+        hotness = new long[Math.max(blocks, 1)];
+        if (traced) {
+            for (ControlFlowGraph.Block block : cfg.blocks()) {
+                hotness[block.index] = executions[block.start];
+            }
+        } else {
+            long total = 0;
+            for (Map.Entry<String, long[]> entry : invocations.entrySet()) {
+                long calls = entry.getValue()[0];
+                total += calls;
+                boolean[] seen = analyzer.reachableBlocks(entry.getKey());
+                for (int i = 0; seen != null && i < blocks; i++) {
+                    hotness[i] += seen[i] ? calls : 0;
+                }
+            }
+            for (int i = 0; i < blocks; i++) {
+                hotness[i] += analyzer.dispatcherBlocks()[i] ? total : 0;
+            }
+        }
+        blockOf = new int[Math.max(code.length, 1)];
+        for (int pc = 0; pc < code.length; pc++) {
+            blockOf[pc] = cfg.blockAt(pc).index;
+        }
+        addedGas = new long[Math.max(blocks, 1)];
+        executions = null;
+    }
+
+    private void checkCollecting() {
+        if (executions == null) {
+            throw new IllegalStateException("profile is already in use, add execution data before obfuscating");
+        }
+    }
+
+    //one JSON document per file, or one per line
+    private static List<JSONObject> readJson(String url) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(url), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    lines.add(line.trim());
+                }
+            }
+        }
+        if (lines.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<JSONObject> rs = new ArrayList<>();
+        String first = lines.get(0);
+        if (first.startsWith("{") && first.endsWith("}")) {
+            for (String line : lines) {
+                rs.add(JSONUtil.parseObj(line));
+            }
+            return rs;
+        }
+        JSON json = JSONUtil.parse(String.join("\n", lines));
+        if (json instanceof JSONArray) {
+            JSONArray array = (JSONArray) json;
+            for (int i = 0; i < array.size(); i++) {
+                rs.add(array.getJSONObject(i));
+            }
+        } else {
+            rs.add((JSONObject) json);
+        }
+        return rs;
+    }
+
+    //tested
+    public static void main(String[] args) {
+        //PUSH1 1 PUSH1 6 JUMPI STOP | JUMPDEST STOP: the jumpi is always taken
+        byte[] code = HexCodec.decode("6001600657005b00");
+        ExecutionProfile profile = new ExecutionProfile(code);
+        JSONArray steps = new JSONArray();
+        for (int pc : new int[]{0, 2, 4, 6, 7}) {
+            steps.add(new JSONObject().set("pc", pc).set("depth", 1));
+        }
+        for (int i = 0; i < 10; i++) {
+            profile.addStructLogs(steps);
+        }
+        System.out.println(profile.hotness(0) + " " + profile.hotness(5) + " " + profile.hotness(6));
+    }
+}
@@ -7,6 +7,7 @@ import java.util.List;
 import static utils.CodeStingToArray.ToArray;
 
 public class FindJumpAndChangeBValue {
+    private static final Log LOG = Log.get(FindJumpAndChangeBValue.class);
 
     public static List<Integer> findDupicateInArray(String[] bytecode, int index) {
 
@@ -30,7 +31,7 @@ public class FindJumpAndChangeBValue {
     public static String[] ChangeBValue(String[] bytecode,int index, int value){
         //Be aware of hexadecimal and decimal issues
         if (index == 0){
-            System.out.println("continue……");
+            LOG.debug("jump at {} has no push in front of it, not changed", index);
         }else {
             bytecode[index-1] = String.valueOf(Integer.toHexString(Integer.parseInt(bytecode[index-1],16) + value));
         }
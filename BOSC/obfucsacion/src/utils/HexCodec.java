@@ -0,0 +1,257 @@
+package utils;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Hex codec used by the reader and writer.
+ * Decoding validates every character and reports the offset of the first bad one.
+ * Large inputs are decoded 8 characters at a time (SWAR on a long), the tail and
+ * any chunk containing a bad character fall back to the table-driven scalar path.
+ */
+public class HexCodec {
+
+    private static final VarHandle LONG_LE =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH = 0x8080808080808080L;
+
+    //nibble value of an ASCII character, -1 if it is not a hex digit
+    private static final byte[] NIBBLE = new byte[256];
+    //two lowercase hex characters per byte value
+    private static final byte[] DIGITS = new byte[512];
+    //"00".."ff", shared by every String[] produced by this class
+    private static final String[] BYTE_STRINGS = new String[256];
+
+    static {
+        Arrays.fill(NIBBLE, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            NIBBLE['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            NIBBLE['a' + i] = (byte) (10 + i);
+            NIBBLE['A' + i] = (byte) (10 + i);
+        }
+        byte[] hex = "0123456789abcdef".getBytes(StandardCharsets.ISO_8859_1);
+        for (int i = 0; i < 256; i++) {
+            DIGITS[2 * i] = hex[i >>> 4];
+            DIGITS[2 * i + 1] = hex[i & 0xF];
+            BYTE_STRINGS[i] = new String(DIGITS, 2 * i, 2, StandardCharsets.ISO_8859_1).intern();
+        }
+    }
+
+    /**
+     * Decode a hex string into bytes
+     * @param hex even number of hex digits, upper or lower case
+     * @return bytes
+     * @throws IllegalArgumentException on odd length or a non hex character (with its offset)
+     */
+    public static byte[] decode(CharSequence hex) {
+        byte[] ascii = hex.toString().getBytes(StandardCharsets.ISO_8859_1);
+        return decode(ascii, 0, ascii.length);
+    }
+
+    /**
+     * Decode ASCII hex digits in ascii[from, to) into bytes
+     */
+    public static byte[] decode(byte[] ascii, int from, int to) {
+        int length = to - from;
+        if ((length & 1) != 0) {
+            throw new IllegalArgumentException("odd number of hex digits: " + length);
+        }
+        byte[] out = new byte[length >>> 1];
+        decodeInto(ascii, from, out, 0, out.length);
+        return out;
+    }
+
+    /**
+     * Decode count bytes from ascii (starting at from) into out (starting at outFrom)
+     */
+    public static void decodeInto(byte[] ascii, int from, byte[] out, int outFrom, int count) {
+        int i = from;
+        int o = outFrom;
+        int end = outFrom + count;
+        //SWAR path: 8 characters -> 4 bytes
+        while (end - o >= 4) {
+            long pairs = decodeWord((long) LONG_LE.get(ascii, i));
+            if (pairs < 0) {
+                break;
+            }
+            putWord(out, o, pairs);
+            i += 8;
+            o += 4;
+        }
+        //scalar path, also locates the bad character of a rejected chunk
+        while (o < end) {
+            out[o++] = decodePair(ascii[i], ascii[i + 1], i - from);
+            i += 2;
+        }
+    }
+
+    /**
+     * Decode the ASCII hex digits between position and limit of a buffer (e.g. a memory-mapped file)
+     * without copying them to the heap first
+     */
+    public static byte[] decode(ByteBuffer ascii) {
+        ByteBuffer buf = ascii.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int from = buf.position();
+        int length = buf.remaining();
+        if ((length & 1) != 0) {
+            throw new IllegalArgumentException("odd number of hex digits: " + length);
+        }
+        byte[] out = new byte[length >>> 1];
+        int i = from;
+        int o = 0;
+        while (out.length - o >= 4) {
+            long pairs = decodeWord(buf.getLong(i));
+            if (pairs < 0) {
+                break;
+            }
+            putWord(out, o, pairs);
+            i += 8;
+            o += 4;
+        }
+        while (o < out.length) {
+            out[o++] = decodePair(buf.get(i), buf.get(i + 1), i - from);
+            i += 2;
+        }
+        return out;
+    }
+
+    //8 little-endian ASCII digits -> 4 bytes in the even byte lanes, -1 if any digit is invalid
+    private static long decodeWord(long x) {
+        long letters = rangeMask(x, 'a', 'f') | rangeMask(x, 'A', 'F');
+        long valid = rangeMask(x, '0', '9') | letters;
+        if ((x & HIGH) != 0 || valid != HIGH) {
+            return -1;
+        }
+        long nibbles = (x & 0x0F0F0F0F0F0F0F0FL) + (letters >>> 7) * 9;
+        return ((nibbles << 4) | (nibbles >>> 8)) & 0x00FF00FF00FF00FFL;
+    }
+
+    private static void putWord(byte[] out, int o, long pairs) {
+        out[o] = (byte) pairs;
+        out[o + 1] = (byte) (pairs >>> 16);
+        out[o + 2] = (byte) (pairs >>> 32);
+        out[o + 3] = (byte) (pairs >>> 48);
+    }
+
+    private static byte decodePair(byte c0, byte c1, int offset) {
+        int hi = NIBBLE[c0 & 0xFF];
+        int lo = NIBBLE[c1 & 0xFF];
+        if ((hi | lo) < 0) {
+            int bad = hi < 0 ? offset : offset + 1;
+            char c = (char) ((hi < 0 ? c0 : c1) & 0xFF);
+            throw new IllegalArgumentException("invalid hex character '" + c + "' at offset " + bad);
+        }
+        return (byte) (hi << 4 | lo);
+    }
+
+    //high bit of every byte of x that lies in [lo, hi], x must be 7-bit ASCII
+    private static long rangeMask(long x, char lo, char hi) {
+        long ge = x + ONES * (0x80 - lo);
+        long gt = x + ONES * (0x7F - hi);
+        return ge & ~gt & HIGH;
+    }
+
+    /**
+     * Encode bytes as lowercase ASCII hex digits
+     */
+    public static byte[] encodeAscii(byte[] bytes) {
+        byte[] ascii = new byte[bytes.length << 1];
+        for (int i = 0, j = 0; i < bytes.length; i++, j += 2) {
+            int v = (bytes[i] & 0xFF) << 1;
+            ascii[j] = DIGITS[v];
+            ascii[j + 1] = DIGITS[v + 1];
+        }
+        return ascii;
+    }
+
+    /**
+     * Encode bytes as a lowercase hex string
+     */
+    public static String encode(byte[] bytes) {
+        return new String(encodeAscii(bytes), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Concatenate the elements of a bytecode string array, elements may hold any number of hex digits
+     */
+    public static String encode(String[] bytecode) {
+        int length = 0;
+        for (String s : bytecode) {
+            length += s.trim().length();
+        }
+        char[] chars = new char[length];
+        int pos = 0;
+        for (String s : bytecode) {
+            String t = s.trim();
+            t.getChars(0, t.length(), chars, pos);
+            pos += t.length();
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Shared two character string of one byte value
+     */
+    public static String byteString(int value) {
+        return BYTE_STRINGS[value & 0xFF];
+    }
+
+    /**
+     * Bytes to the one-byte-per-element string array used by the obfuscation methods
+     */
+    public static String[] toStringArray(byte[] bytes) {
+        String[] strs = new String[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            strs[i] = BYTE_STRINGS[bytes[i] & 0xFF];
+        }
+        return strs;
+    }
+
+    /**
+     * Hex string to the string array form, an odd trailing digit is kept as a one character element
+     */
+    public static String[] toStringArray(CharSequence hex) {
+        byte[] ascii = hex.toString().getBytes(StandardCharsets.ISO_8859_1);
+        int even = ascii.length & ~1;
+        byte[] bytes = decode(ascii, 0, even);
+        if (even == ascii.length) {
+            return toStringArray(bytes);
+        }
+        if (NIBBLE[ascii[even] & 0xFF] < 0) {
+            throw new IllegalArgumentException("invalid hex character '" + (char) (ascii[even] & 0xFF)
+                    + "' at offset " + even);
+        }
+        String[] strs = Arrays.copyOf(toStringArray(bytes), bytes.length + 1);
+        strs[bytes.length] = String.valueOf((char) ascii[even]);
+        return strs;
+    }
+
+    /**
+     * String array (elements of any even number of digits) back to bytes
+     */
+    public static byte[] toBytes(String[] bytecode) {
+        return decode(encode(bytecode));
+    }
+
+    //tested
+    public static void main(String[] args) {
+        String bytecode = "608060405234801561001057600080fd5b50610150806100206000396000f3fe";
+        byte[] b = decode(bytecode);
+        System.out.println(encode(b).equals(bytecode));
+        System.out.println(Arrays.toString(toStringArray("608060400")));
+        System.out.println(encode(decode("DEADbeef00FF")));
+        try {
+            decode("6080604052348015610010576000x0fd");
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+}
@@ -6,12 +6,98 @@ import java.util.List;
 import java.util.Random;
 
 public class InsertIndex {
+    private static final Log LOG = Log.get(InsertIndex.class);
+
     //5b jumpdest
 
     //f3 return
 
     //fd revert
 
+    //opcodes in front of which obfuscation code may be inserted
+    public static final int[] SITE_OPCODES = {0x5b, 0xf3, 0xfd, 0xfe, 0x3d, 0xff, 0x00, 0x32};
+
+    /**
+     * Position of the opcode in SITE_OPCODES, -1 if it is not an insertion site
+     */
+    public static int siteCategory(int opcode){
+        for (int i = 0; i < SITE_OPCODES.length; i++) {
+            if (SITE_OPCODES[i] == opcode){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Insertion sites of bytecode bytes: instruction boundaries in front of one of SITE_OPCODES
+     */
+    public static int[] insertSites(byte[] code){
+        int count = 0;
+        int[] sites = new int[16];
+        for (int pc = 0; pc < code.length; pc = Opcodes.next(code, pc)) {
+            if (siteCategory(code[pc] & 0xFF) >= 0){
+                if (count == sites.length){
+                    sites = Arrays.copyOf(sites, count * 2);
+                }
+                sites[count++] = pc;
+            }
+        }
+        return Arrays.copyOf(sites, count);
+    }
+
+    /**
+     * Pick a random insertion site of bytecode bytes
+     * @return offset of the site, -1 if there is none
+     */
+    public static int insertIndex(byte[] code, Random r){
+        return insertIndex(code, null, r);
+    }
+
+    /**
+     * Pick a random insertion site among the eligible offsets
+     * @param eligible eligible offsets, null if every offset is
+     * @return offset of the site, -1 if there is none
+     */
+    public static int insertIndex(byte[] code, boolean[] eligible, Random r){
+        return insertIndex(code, eligible, null, r);
+    }
+
+    /**
+     * Pick an insertion site among the eligible offsets with probability proportional to its weight
+     * @param weights weight of every offset, null if the sites are equally likely; sites of weight 0 are never picked
+     * @return offset of the site, -1 if there is none
+     */
+    public static int insertIndex(byte[] code, boolean[] eligible, double[] weights, Random r){
+        int[] sites = insertSites(code);
+        int count = 0;
+        double total = 0;
+        for (int site : sites) {
+            if ((eligible == null || eligible[site]) && (weights == null || weights[site] > 0)){
+                sites[count++] = site;
+                total += weights == null ? 0 : weights[site];
+            }
+        }
+        if (count == 0){
+            return -1;
+        }
+        return weights == null ? sites[r.nextInt(count)] : pick(sites, count, weights, total, r);
+    }
+
+    /**
+     * Pick one of the first count candidates with probability proportional to its weight
+     */
+    public static int pick(int[] candidates, int count, double[] weights, double total, Random r){
+        double x = r.nextDouble() * total;
+        for (int i = 0; i < count; i++) {
+            x -= weights[candidates[i]];
+            if (x < 0){
+                return candidates[i];
+            }
+        }
+        return candidates[count - 1];
+    }
+
     public static int insertIndex(String[] bytecode){
         String jumpdestIndex = "5b";
         String returnIndex = "f3";
@@ -42,7 +128,7 @@ public class InsertIndex {
         // and there is no place to insert,
         //bug :Exception in thread "main" java.lang.IllegalArgumentException: bound must be positive
         //Solution: increase the insertion place
-        System.out.println(Arrays.toString(bytecode));
+        LOG.trace("insertIndex over {}", bytecode);
         int i = r.nextInt(indexList.size());
         return indexList.get(i);
     }
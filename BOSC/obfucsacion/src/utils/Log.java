@@ -0,0 +1,374 @@
+package utils;
+
+import java.io.PrintStream;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Leveled logging of utils and obfuscationmethods.
+ *   private static final Log LOG = Log.get(InsertIndex.class);
+ *   LOG.debug("insert at {}, {} elements moved", index, length - index);
+ * A message is only formatted when its level is enabled. There are int/long overloads and arrays are
+ * passed as they are (formatted with Arrays.toString), so a disabled call allocates nothing.
+ * Formatted lines go through a bounded queue to one daemon thread that writes them to stdout;
+ * when the queue is full DEBUG and TRACE lines are dropped (and counted), INFO and above are written
+ * on the calling thread behind the queued lines. flush() and the shutdown hook wait for the line the
+ * appender is writing as well.
+ *
+ * Level: -Dbosc.log=TRACE|DEBUG|INFO|WARN|ERROR|OFF (default INFO), per class -Dbosc.log.InsertIndex=DEBUG.
+ * A Progress is drawn by the same thread as one line that log lines scroll past.
+ */
+public class Log {
+
+    public enum Level {TRACE, DEBUG, INFO, WARN, ERROR, OFF}
+
+    private static final int QUEUE_SIZE = 4096;
+    private static final long PROGRESS_MILLIS = 500;
+    //redraw interval when every redraw is a new line
+    private static final long PROGRESS_LINE_MILLIS = 5000;
+    //longest wait of the shutdown hook for the appender
+    private static final long DRAIN_MILLIS = 1000;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+    private static final Level DEFAULT_LEVEL = parse(System.getProperty("bosc.log"), Level.INFO);
+    private static final BlockingQueue<String> QUEUE = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private static final AtomicLong DROPPED = new AtomicLong();
+    //lines queued and not written yet, the one the appender took off the queue included
+    private static final AtomicLong PENDING = new AtomicLong();
+    private static final PrintStream OUT = System.out;
+    private static volatile Progress progress;
+    private static final Thread APPENDER = startAppender();
+
+    private final String name;
+    private volatile int level;
+
+    private Log(String name, Level level) {
+        this.name = name;
+        this.level = level.ordinal();
+    }
+
+    public static Log get(Class<?> owner) {
+        return new Log(owner.getSimpleName(), parse(System.getProperty("bosc.log." + owner.getSimpleName()), DEFAULT_LEVEL));
+    }
+
+    public void setLevel(Level level) {
+        this.level = level.ordinal();
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.ordinal() >= this.level;
+    }
+
+    public boolean isDebug() {
+        return Level.DEBUG.ordinal() >= level;
+    }
+
+    public void trace(String format, Object a) {
+        if (Level.TRACE.ordinal() >= level) {
+            log(Level.TRACE, format, a, null, null, null);
+        }
+    }
+
+    public void debug(String format, Object a) {
+        if (Level.DEBUG.ordinal() >= level) {
+            log(Level.DEBUG, format, a, null, null, null);
+        }
+    }
+
+    public void debug(String format, int a) {
+        if (Level.DEBUG.ordinal() >= level) {
+            log(Level.DEBUG, format, a, null, null, null);
+        }
+    }
+
+    public void debug(String format, int a, int b) {
+        if (Level.DEBUG.ordinal() >= level) {
+            log(Level.DEBUG, format, a, b, null, null);
+        }
+    }
+
+    public void debug(String format, Object a, Object b) {
+        if (Level.DEBUG.ordinal() >= level) {
+            log(Level.DEBUG, format, a, b, null, null);
+        }
+    }
+
+    public void info(String format) {
+        if (Level.INFO.ordinal() >= level) {
+            log(Level.INFO, format, null, null, null, null);
+        }
+    }
+
+    public void info(String format, Object a) {
+        if (Level.INFO.ordinal() >= level) {
+            log(Level.INFO, format, a, null, null, null);
+        }
+    }
+
+    public void info(String format, Object a, Object b) {
+        if (Level.INFO.ordinal() >= level) {
+            log(Level.INFO, format, a, b, null, null);
+        }
+    }
+
+    public void warn(String format) {
+        if (Level.WARN.ordinal() >= level) {
+            log(Level.WARN, format, null, null, null, null);
+        }
+    }
+
+    public void warn(String format, Object a) {
+        if (Level.WARN.ordinal() >= level) {
+            log(Level.WARN, format, a, null, null, null);
+        }
+    }
+
+    public void warn(String format, Object a, Object b) {
+        if (Level.WARN.ordinal() >= level) {
+            log(Level.WARN, format, a, b, null, null);
+        }
+    }
+
+    public void error(String format, Object a, Throwable t) {
+        if (Level.ERROR.ordinal() >= level) {
+            log(Level.ERROR, format, a, null, null, t);
+        }
+    }
+
+    private void log(Level level, String format, Object a, Object b, Object c, Throwable t) {
+        StringBuilder sb = new StringBuilder(64);
+        TIME.formatTo(LocalTime.now(), sb);
+        sb.append(' ').append(level)
+                .append(" [").append(Thread.currentThread().getName()).append("] ").append(name).append(" - ");
+        Object[] args = {a, b, c};
+        int arg = 0;
+        int from = 0;
+        int at;
+        while ((at = format.indexOf("{}", from)) >= 0) {
+            sb.append(format, from, at).append(arg < args.length ? render(args[arg++]) : "{}");
+            from = at + 2;
+        }
+        sb.append(format, from, format.length());
+        if (t != null) {
+            sb.append(System.lineSeparator()).append(t);
+            for (StackTraceElement element : t.getStackTrace()) {
+                sb.append(System.lineSeparator()).append("\tat ").append(element);
+            }
+        }
+        String line = sb.toString();
+        PENDING.incrementAndGet();
+        if (QUEUE.offer(line)) {
+            return;
+        }
+        PENDING.decrementAndGet();
+        if (level.ordinal() >= Level.INFO.ordinal()) {
+            synchronized (OUT) {
+                writeQueued();
+                OUT.println(line);
+                OUT.flush();
+            }
+        } else {
+            DROPPED.incrementAndGet();
+        }
+    }
+
+    //write the lines in the queue, hold the OUT lock
+    private static void writeQueued() {
+        for (String line; (line = QUEUE.poll()) != null; ) {
+            OUT.println(line);
+            PENDING.decrementAndGet();
+        }
+    }
+
+    private static String render(Object arg) {
+        if (arg instanceof Object[]) {
+            return Arrays.toString((Object[]) arg);
+        }
+        if (arg instanceof byte[]) {
+            return HexCodec.encode((byte[]) arg);
+        }
+        if (arg instanceof int[]) {
+            return Arrays.toString((int[]) arg);
+        }
+        return String.valueOf(arg);
+    }
+
+    private static Level parse(String value, Level otherwise) {
+        try {
+            return value == null ? otherwise : Level.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return otherwise;
+        }
+    }
+
+    /**
+     * Wait until every queued line is written
+     */
+    public static void flush() {
+        while (PENDING.get() > 0 && APPENDER.isAlive()) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static Thread startAppender() {
+        Thread appender = new Thread(Log::append, "log-appender");
+        appender.setDaemon(true);
+        appender.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-flush"));
+        return appender;
+    }
+
+    private static void append() {
+        long drawn = 0;
+        while (true) {
+            try {
+                String line = QUEUE.poll(PROGRESS_MILLIS, TimeUnit.MILLISECONDS);
+                Progress current = progress;
+                synchronized (OUT) {
+                    if (line != null) {
+                        if (current != null && current.console) {
+                            //log lines scroll past the progress line
+                            OUT.print('\r');
+                            OUT.print(blank(current.width));
+                            OUT.print('\r');
+                        }
+                        OUT.println(line);
+                        PENDING.decrementAndGet();
+                        writeQueued();
+                        long dropped = DROPPED.getAndSet(0);
+                        if (dropped > 0) {
+                            OUT.println("... " + dropped + " debug lines dropped, the log queue was full");
+                        }
+                    }
+                    long interval = current != null && current.console ? PROGRESS_MILLIS : PROGRESS_LINE_MILLIS;
+                    boolean redraw = current != null && current.console && line != null;
+                    if (current != null && (redraw || System.currentTimeMillis() - drawn >= interval)) {
+                        current.draw(OUT);
+                        drawn = System.currentTimeMillis();
+                    }
+                    OUT.flush();
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    //the appender keeps running during shutdown: let it write the line it holds, then write the rest
+    private static void drain() {
+        long deadline = System.currentTimeMillis() + DRAIN_MILLIS;
+        while (PENDING.get() > 0 && APPENDER.isAlive() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        synchronized (OUT) {
+            writeQueued();
+            OUT.flush();
+        }
+    }
+
+    private static String blank(int width) {
+        char[] spaces = new char[width];
+        Arrays.fill(spaces, ' ');
+        return new String(spaces);
+    }
+
+    /**
+     * One progress line of a batch: done/total, rate, failures and time left, redrawn in place
+     * (a new line every redraw when stdout is not a console)
+     */
+    public static final class Progress {
+        private final String label;
+        private final int total;
+        private final long start = System.nanoTime();
+        private final AtomicInteger done = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final boolean console = System.console() != null;
+        private int width;
+
+        private Progress(String label, int total) {
+            this.label = label;
+            this.total = total;
+        }
+
+        /**
+         * Show a progress line until finish()
+         */
+        public static Progress start(String label, int total) {
+            Progress p = new Progress(label, total);
+            progress = p;
+            return p;
+        }
+
+        public void step(boolean failed) {
+            done.incrementAndGet();
+            if (failed) {
+                this.failed.incrementAndGet();
+            }
+        }
+
+        /**
+         * Draw the final state and stop showing the line
+         */
+        public void finish() {
+            synchronized (OUT) {
+                draw(OUT);
+                if (console) {
+                    OUT.println();
+                }
+                OUT.flush();
+                progress = null;
+            }
+        }
+
+        private void draw(PrintStream out) {
+            int n = done.get();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            double rate = seconds == 0 ? 0 : n / seconds;
+            long eta = rate == 0 ? 0 : Math.round((total - n) / rate);
+            String line = String.format("%s %d/%d (%d%%) %.1f/s %d failed eta %ds", label, n, total,
+                    total == 0 ? 100 : 100 * n / total, rate, failed.get(), eta);
+            if (console) {
+                out.print('\r');
+                out.print(line);
+                if (line.length() < width) {
+                    out.print(blank(width - line.length()));
+                }
+            } else {
+                out.println(line);
+            }
+            width = line.length();
+        }
+    }
+
+    //tested
+    public static void main(String[] args) throws InterruptedException {
+        Log log = get(Log.class);
+        String[] bytecode = {"60", "80", "60", "40"};
+        log.debug("not shown at INFO: {}", bytecode);
+        log.setLevel(Level.DEBUG);
+        log.debug("insert at {}, {} elements moved", 1, 3);
+        log.debug("bytecode {}", bytecode);
+        Progress progress = Progress.start("demo", 20);
+        for (int i = 0; i < 20; i++) {
+            progress.step(i % 7 == 0);
+            Thread.sleep(50);
+        }
+        progress.finish();
+        log.info("done");
+        flush();
+    }
+}
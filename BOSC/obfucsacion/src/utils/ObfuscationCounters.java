@@ -0,0 +1,196 @@
+package utils;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live counters of the obfuscation of this JVM, registered as the MBean bosc:type=ObfuscationCounters
+ * (jconsole, or -Dcom.sun.management.jmxremote for remote access). Totals are LongAdders, rates
+ * count per second buckets of the last WINDOW_SECONDS whole seconds (fewer right after the start),
+ * the current partial second is not counted yet.
+ */
+public class ObfuscationCounters implements ObfuscationCountersMBean {
+
+    public static final int WINDOW_SECONDS = 10;
+    public static final String NAME = "bosc:type=ObfuscationCounters";
+
+    private static volatile ObfuscationCounters instance;
+
+    private final LongAdder contracts = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder passAttempts = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final Window contractWindow = new Window();
+    private final Window byteWindow = new Window();
+    private final Window failureWindow = new Window();
+    private final Window attemptWindow = new Window();
+    private final Window retryWindow = new Window();
+    private volatile int queueDepth;
+    private final long start = second();
+
+    /**
+     * Counts of the last WINDOW_SECONDS whole seconds and the current one
+     */
+    private static final class Window {
+        private final long[] counts = new long[WINDOW_SECONDS + 1];
+        private final long[] seconds = new long[WINDOW_SECONDS + 1];
+
+        synchronized void add(long second, long n) {
+            //nanoTime seconds may be negative
+            int slot = (int) Math.floorMod(second, (long) counts.length);
+            if (seconds[slot] != second) {
+                seconds[slot] = second;
+                counts[slot] = 0;
+            }
+            counts[slot] += n;
+        }
+
+        //the last WINDOW_SECONDS whole seconds before the current one
+        synchronized long sum(long second) {
+            long sum = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (second - seconds[i] >= 1 && second - seconds[i] <= WINDOW_SECONDS) {
+                    sum += counts[i];
+                }
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * The counters of this JVM, registered with the platform MBean server on first use
+     */
+    public static ObfuscationCounters get() {
+        if (instance == null) {
+            synchronized (ObfuscationCounters.class) {
+                if (instance == null) {
+                    ObfuscationCounters counters = new ObfuscationCounters();
+                    try {
+                        ManagementFactory.getPlatformMBeanServer().registerMBean(counters, new ObjectName(NAME));
+                    } catch (JMException e) {
+                        //counters still count, they are just not visible over JMX
+                    }
+                    instance = counters;
+                }
+            }
+        }
+        return instance;
+    }
+
+    private static long second() {
+        return Math.floorDiv(System.nanoTime(), 1000000000L);
+    }
+
+    //whole seconds the windows cover
+    private long covered(long second) {
+        return Math.max(1, Math.min(WINDOW_SECONDS, second - start));
+    }
+
+    /**
+     * A contract went through the pipeline
+     * @param bytes runtime bytes of its input
+     */
+    public void contract(int bytes, boolean failed) {
+        long second = second();
+        contracts.increment();
+        this.bytes.add(bytes);
+        contractWindow.add(second, 1);
+        byteWindow.add(second, bytes);
+        if (failed) {
+            failures.increment();
+            failureWindow.add(second, 1);
+        }
+    }
+
+    /**
+     * A pass attempt, attempt 0 is the first one
+     */
+    public void passAttempt(int attempt) {
+        long second = second();
+        passAttempts.increment();
+        attemptWindow.add(second, 1);
+        if (attempt > 0) {
+            retries.increment();
+            retryWindow.add(second, 1);
+        }
+    }
+
+    public void setQueueDepth(int queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    @Override
+    public long getContracts() {
+        return contracts.sum();
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    @Override
+    public long getPassAttempts() {
+        return passAttempts.sum();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public double getContractsPerSecond() {
+        long second = second();
+        return (double) contractWindow.sum(second) / covered(second);
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        long second = second();
+        return (double) byteWindow.sum(second) / covered(second);
+    }
+
+    @Override
+    public double getFailureRate() {
+        long second = second();
+        long n = contractWindow.sum(second);
+        return n == 0 ? 0 : (double) failureWindow.sum(second) / n;
+    }
+
+    @Override
+    public double getRetryRate() {
+        long second = second();
+        long n = attemptWindow.sum(second);
+        return n == 0 ? 0 : (double) retryWindow.sum(second) / n;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    //tested
+    public static void main(String[] args) throws Exception {
+        ObfuscationCounters counters = get();
+        for (int i = 0; i < 20; i++) {
+            counters.contract(1000, i % 10 == 0);
+            counters.passAttempt(i % 4 == 3 ? 1 : 0);
+        }
+        counters.setQueueDepth(5);
+        //rates count whole seconds
+        Thread.sleep(1000);
+        ObjectName name = new ObjectName(NAME);
+        for (String attribute : new String[]{"Contracts", "ContractsPerSecond", "BytesPerSecond", "FailureRate", "RetryRate", "QueueDepth"}) {
+            System.out.println(attribute + " " + ManagementFactory.getPlatformMBeanServer().getAttribute(name, attribute));
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package utils;
+
+/**
+ * JMX view of ObfuscationCounters, rates are over the last ObfuscationCounters.WINDOW_SECONDS seconds
+ */
+public interface ObfuscationCountersMBean {
+
+    long getContracts();
+
+    long getBytes();
+
+    long getFailures();
+
+    long getPassAttempts();
+
+    long getRetries();
+
+    double getContractsPerSecond();
+
+    double getBytesPerSecond();
+
+    /**
+     * Failed contracts per contract
+     */
+    double getFailureRate();
+
+    /**
+     * Retried pass attempts per pass attempt
+     */
+    double getRetryRate();
+
+    /**
+     * Contracts waiting for a worker
+     */
+    int getQueueDepth();
+}
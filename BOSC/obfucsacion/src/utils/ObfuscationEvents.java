@@ -0,0 +1,119 @@
+package utils;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events of the obfuscation stages, one per decode, clean, pass attempt,
+ * relocation (layout of a pass), recovery and write of a contract.
+ * Use them as
+ *   ObfuscationEvents.Clean event = new ObfuscationEvents.Clean();
+ *   event.begin();
+ *   ... the stage ...
+ *   ObfuscationEvents.commit(event, contract, seed, bytesIn, bytesOut);
+ * When the event is not enabled commit() only checks a flag, so the events stay in production code;
+ * record with java -XX:StartFlightRecording:filename=bosc.jfr ... and read with jfr print --categories BOSC bosc.jfr
+ */
+public class ObfuscationEvents {
+
+    @Category("BOSC")
+    public abstract static class ContractEvent extends Event {
+        @Label("Contract")
+        public String contract;
+
+        @Label("Seed")
+        public long seed;
+
+        @Label("Bytes In")
+        @DataAmount
+        public int bytesIn;
+
+        @Label("Bytes Out")
+        @DataAmount
+        public int bytesOut;
+    }
+
+    @Name("bosc.Decode")
+    @Label("Decode")
+    @Description("Read and hex-decode a bytecode file")
+    public static class Decode extends ContractEvent {
+    }
+
+    @Name("bosc.Clean")
+    @Label("Clean")
+    @Description("Extract the runtime section")
+    public static class Clean extends ContractEvent {
+    }
+
+    @Name("bosc.Pass")
+    @Label("Pass")
+    @Description("One attempt of an obfuscation pass, including its relocation and validation")
+    public static class Pass extends ContractEvent {
+        @Label("Pass")
+        public String pass;
+
+        @Label("Attempt")
+        public int attempt;
+
+        @Label("Applied")
+        public boolean applied;
+    }
+
+    @Name("bosc.Relocation")
+    @Label("Relocation")
+    @Description("Layout of the edits of a pass with every jump target relocated")
+    public static class Relocation extends ContractEvent {
+        @Label("Pass")
+        public String pass;
+
+        @Label("Edits")
+        public int edits;
+
+        @Label("Relocated Jumps")
+        public int relocatedJumps;
+
+        @Label("Widened Pushes")
+        public int widenedPushes;
+    }
+
+    @Name("bosc.Recovery")
+    @Label("Recovery")
+    @Description("Put the obfuscated runtime section back between deployment code and aux data")
+    public static class Recovery extends ContractEvent {
+    }
+
+    @Name("bosc.Write")
+    @Label("Write")
+    @Description("Write the obfuscated bytecode and its offset map")
+    public static class Write extends ContractEvent {
+    }
+
+    /**
+     * End the event and commit it with the contract fields if it is enabled
+     */
+    public static void commit(ContractEvent event, String contract, long seed, int bytesIn, int bytesOut) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.contract = contract;
+            event.seed = seed;
+            event.bytesIn = bytesIn;
+            event.bytesOut = bytesOut;
+            event.commit();
+        }
+    }
+
+    //tested
+    public static void main(String[] args) {
+        byte[] bytecode = HexCodec.decode("6080604052348015600f57600080fd5b50"
+                + "6004361060285760e060020a6000350463c6888fa18114602d575b600080fd5b00a165627a7a72305820");
+        Clean event = new Clean();
+        event.begin();
+        byte[] runtime = ByteCodeCleanAndRecovry.byteCodeClean(bytecode);
+        commit(event, "example", 0, bytecode.length, runtime.length);
+        System.out.println("clean event enabled: " + event.isEnabled() + ", runtime " + runtime.length + " bytes");
+    }
+}
@@ -0,0 +1,293 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Offset map from an obfuscated runtime section back to the original one, so a PC of the obfuscated
+ * contract (a revert, a trace step) can be looked up in the original code and its source map.
+ * The map is a sorted list of runs (newOffset, oldOffset, kind):
+ *   ORIGINAL   bytes copied from the original, new byte newOffset + i is old byte oldOffset + i
+ *   REWRITTEN  an original instruction with other bytes (relocated PUSH, patched opcode), every byte maps to oldOffset
+ *   INSERTED   obfuscation code, every byte maps to oldOffset, the original instruction it was inserted in front of
+ *
+ * Binary format (big-endian):
+ *   header  magic "BOSCOMAP", version int, new length int, old length int, run count int
+ *   runs    one 8 byte run each, sorted by new offset: new offset int, kind << 30 | old offset int
+ * lookup() binary searches the runs in place, a mapped file is used as is.
+ *
+ * usage: OffsetMap mapFile pc...
+ */
+public class OffsetMap {
+
+    public enum Kind {ORIGINAL, REWRITTEN, INSERTED}
+
+    private static final byte[] MAGIC = "BOSCOMAP".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final int RUN_SIZE = 8;
+    private static final int OFFSET_MASK = (1 << 30) - 1;
+    private static final Kind[] KINDS = Kind.values();
+
+    private final ByteBuffer buf;
+    private final int runs;
+
+    private OffsetMap(ByteBuffer buf) {
+        byte[] magic = new byte[MAGIC.length];
+        buf.duplicate().get(magic);
+        if (!Arrays.equals(magic, MAGIC) || buf.getInt(8) != VERSION) {
+            throw new IllegalArgumentException("not a version " + VERSION + " offset map");
+        }
+        this.buf = buf;
+        this.runs = buf.getInt(20);
+    }
+
+    /**
+     * Read a map from its binary form, the buffer is not copied
+     */
+    public static OffsetMap wrap(ByteBuffer buf) {
+        return new OffsetMap(buf.slice());
+    }
+
+    /**
+     * Map a map file read-only
+     */
+    public static OffsetMap load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new OffsetMap(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Map of code nothing was done to
+     */
+    public static OffsetMap identity(int length) {
+        return build(length, identityOrigins(length), new byte[length]);
+    }
+
+    /**
+     * Map of the code the edits of buf were laid out to, back to buf.original()
+     */
+    public static OffsetMap of(EditBuffer buf, EditBuffer.Layout layout) {
+        byte[] original = buf.original();
+        int[] origin = new int[layout.code.length];
+        byte[] kinds = new byte[layout.code.length];
+        //bytes inserted in front of every original offset
+        int[] insertedAt = new int[original.length + 1];
+        List<EditBuffer.Edit> edits = buf.edits();
+        for (int e = 0; e < edits.size(); e++) {
+            EditBuffer.Edit edit = edits.get(e);
+            if (edit.isInsert()) {
+                int start = layout.editStarts[e];
+                Arrays.fill(origin, start, start + edit.template.length(), edit.offset);
+                Arrays.fill(kinds, start, start + edit.template.length(), (byte) Kind.INSERTED.ordinal());
+                insertedAt[edit.offset] += edit.template.length();
+            }
+        }
+        for (int pc = 0; pc < original.length; pc = Opcodes.next(original, pc)) {
+            int next = Math.min(Opcodes.next(original, pc), original.length);
+            int start = layout.newOffsets[pc];
+            int length = layout.newOffsets[next] - insertedAt[next] - start;
+            boolean same = length == next - pc;
+            for (int i = 0; same && i < length; i++) {
+                same = layout.code[start + i] == original[pc + i];
+            }
+            for (int i = 0; i < length; i++) {
+                origin[start + i] = same ? pc + i : pc;
+                kinds[start + i] = (byte) (same ? Kind.ORIGINAL : Kind.REWRITTEN).ordinal();
+            }
+        }
+        return build(original.length, origin, kinds);
+    }
+
+    /**
+     * Map of the code next was laid out to, back to the original of this map
+     * @param next map of a later pass, its old code is the new code of this map
+     */
+    public OffsetMap then(OffsetMap next) {
+        if (next.oldLength() != newLength()) {
+            throw new IllegalArgumentException("map of " + next.oldLength() + " bytes does not follow a map to "
+                    + newLength() + " bytes");
+        }
+        int length = next.newLength();
+        int[] origin = new int[length];
+        byte[] kinds = new byte[length];
+        int[] ourOrigin = new int[newLength()];
+        byte[] ourKinds = new byte[newLength()];
+        expand(ourOrigin, ourKinds);
+        next.expand(origin, kinds);
+        for (int pc = 0; pc < length; pc++) {
+            int mid = origin[pc];
+            if (mid >= ourOrigin.length) {
+                //inserted at the end of the code
+                origin[pc] = oldLength();
+                continue;
+            }
+            origin[pc] = ourOrigin[mid];
+            kinds[pc] = (byte) Math.max(kinds[pc], ourKinds[mid]);
+        }
+        return build(oldLength(), origin, kinds);
+    }
+
+    public int newLength() {
+        return buf.getInt(12);
+    }
+
+    public int oldLength() {
+        return buf.getInt(16);
+    }
+
+    public int runs() {
+        return runs;
+    }
+
+    /**
+     * Index of the run holding a new offset, binary search
+     */
+    public int run(int pc) {
+        if (pc < 0 || pc >= newLength()) {
+            throw new IndexOutOfBoundsException("pc " + pc + " is outside the " + newLength() + " byte code");
+        }
+        int lo = 0;
+        int hi = runs - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (newOffset(mid) <= pc) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Original offset of a new offset
+     */
+    public int lookup(int pc) {
+        int run = run(pc);
+        int old = oldOffset(run);
+        return kind(run) == Kind.ORIGINAL ? old + pc - newOffset(run) : old;
+    }
+
+    public Kind kindAt(int pc) {
+        return kind(run(pc));
+    }
+
+    public int newOffset(int run) {
+        return buf.getInt(HEADER_SIZE + run * RUN_SIZE);
+    }
+
+    public int oldOffset(int run) {
+        return buf.getInt(HEADER_SIZE + run * RUN_SIZE + 4) & OFFSET_MASK;
+    }
+
+    public Kind kind(int run) {
+        return KINDS[buf.getInt(HEADER_SIZE + run * RUN_SIZE + 4) >>> 30];
+    }
+
+    /**
+     * The binary form, to be written next to the obfuscated code
+     */
+    public byte[] toBytes() {
+        byte[] rs = new byte[HEADER_SIZE + runs * RUN_SIZE];
+        ByteBuffer view = buf.duplicate();
+        view.position(0);
+        view.get(rs);
+        return rs;
+    }
+
+    private void expand(int[] origin, byte[] kinds) {
+        for (int run = 0; run < runs; run++) {
+            int end = run + 1 < runs ? newOffset(run + 1) : newLength();
+            int old = oldOffset(run);
+            Kind kind = kind(run);
+            for (int pc = newOffset(run); pc < end; pc++) {
+                origin[pc] = kind == Kind.ORIGINAL ? old + pc - newOffset(run) : old;
+                kinds[pc] = (byte) kind.ordinal();
+            }
+        }
+    }
+
+    private static int[] identityOrigins(int length) {
+        int[] origin = new int[length];
+        for (int i = 0; i < length; i++) {
+            origin[i] = i;
+        }
+        return origin;
+    }
+
+    //compress per byte origins into runs
+    private static OffsetMap build(int oldLength, int[] origin, byte[] kinds) {
+        if (oldLength > OFFSET_MASK) {
+            throw new IllegalArgumentException("code of " + oldLength + " bytes is too large for an offset map");
+        }
+        int runs = 0;
+        for (int pc = 0; pc < origin.length; pc++) {
+            if (startsRun(origin, kinds, pc)) {
+                runs++;
+            }
+        }
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + runs * RUN_SIZE);
+        buf.put(MAGIC).putInt(VERSION).putInt(origin.length).putInt(oldLength).putInt(runs);
+        for (int pc = 0; pc < origin.length; pc++) {
+            if (startsRun(origin, kinds, pc)) {
+                buf.putInt(pc).putInt(kinds[pc] << 30 | origin[pc]);
+            }
+        }
+        buf.flip();
+        return new OffsetMap(buf);
+    }
+
+    private static boolean startsRun(int[] origin, byte[] kinds, int pc) {
+        if (pc == 0 || kinds[pc] != kinds[pc - 1]) {
+            return true;
+        }
+        return kinds[pc] == Kind.ORIGINAL.ordinal() ? origin[pc] != origin[pc - 1] + 1 : origin[pc] != origin[pc - 1];
+    }
+
+    //tested
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0) {
+            OffsetMap map = load(Paths.get(args[0]));
+            for (int i = 1; i < args.length; i++) {
+                int pc = Integer.decode(args[i]);
+                System.out.println(pc + " -> " + map.lookup(pc) + " " + map.kindAt(pc));
+            }
+            return;
+        }
+        //PUSH1 6 JUMP STOP STOP STOP JUMPDEST STOP
+        byte[] code = HexCodec.decode("600656000000" + "5b00");
+        EditBuffer buf = new EditBuffer(code);
+        buf.stamp(3, SnippetTemplates.get(SnippetTemplates.INCOMPLETE + ".add"), new Random(1));
+        EditBuffer.Layout layout = buf.layout();
+        OffsetMap map = identity(code.length).then(of(buf, layout));
+        Path file = Files.createTempFile("offsets", ".map");
+        Files.write(file, map.toBytes());
+        OffsetMap loaded = load(file);
+        for (int pc = 0; pc < layout.code.length; pc++) {
+            System.out.print(pc + "->" + loaded.lookup(pc) + loaded.kindAt(pc).name().charAt(0) + " ");
+        }
+        System.out.println();
+        Files.delete(file);
+        Checks.check(Arrays.equals(loaded.toBytes(), map.toBytes()) && loaded.oldLength() == code.length
+                && loaded.newLength() == layout.code.length, "map survives the file");
+        Checks.check(loaded.lookup(0) == 0 && loaded.kindAt(0) == Kind.REWRITTEN, "relocated PUSH is rewritten");
+        int jumpdest = layout.newOffsets[6];
+        Checks.check(loaded.lookup(jumpdest) == 6 && loaded.kindAt(jumpdest) == Kind.ORIGINAL, "JUMPDEST maps back");
+        for (int pc = layout.newOffsets[3]; pc < jumpdest; pc++) {
+            if (loaded.kindAt(pc) == Kind.INSERTED) {
+                Checks.check(loaded.lookup(pc) == 3, "snippet byte " + pc + " maps to its site");
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * EVM opcode table: mnemonics, immediate sizes and the opcodes the obfuscation methods care about
+ */
+public class Opcodes {
+
+    public static final int STOP = 0x00;
+    public static final int ADD = 0x01;
+    public static final int LT = 0x10;
+    public static final int GT = 0x11;
+    public static final int EQ = 0x14;
+    public static final int ISZERO = 0x15;
+    public static final int AND = 0x16;
+    public static final int SHR = 0x1c;
+    public static final int CALLDATALOAD = 0x35;
+    public static final int CALLDATASIZE = 0x36;
+    public static final int CODECOPY = 0x39;
+    public static final int RETURNDATASIZE = 0x3d;
+    public static final int POP = 0x50;
+    public static final int JUMP = 0x56;
+    public static final int JUMPI = 0x57;
+    public static final int JUMPDEST = 0x5b;
+    public static final int PUSH0 = 0x5f;
+    public static final int PUSH1 = 0x60;
+    public static final int PUSH2 = 0x61;
+    public static final int PUSH4 = 0x63;
+    public static final int PUSH32 = 0x7f;
+    public static final int DUP1 = 0x80;
+    public static final int SWAP1 = 0x90;
+    public static final int RETURN = 0xf3;
+    public static final int REVERT = 0xfd;
+    public static final int INVALID = 0xfe;
+    public static final int SELFDESTRUCT = 0xff;
+
+    private static final String[] NAMES = new String[256];
+    private static final int[] GAS = new int[256];
+    //stack items taken and pushed, -1 for undefined opcodes
+    private static final int[] STACK_IN = new int[256];
+    private static final int[] STACK_OUT = new int[256];
+
+    static {
+        String[] low = {
+                "STOP", "ADD", "MUL", "SUB", "DIV", "SDIV", "MOD", "SMOD", "ADDMOD", "MULMOD", "EXP", "SIGNEXTEND",
+                null, null, null, null,
+                "LT", "GT", "SLT", "SGT", "EQ", "ISZERO", "AND", "OR", "XOR", "NOT", "BYTE", "SHL", "SHR", "SAR",
+                null, null,
+                "SHA3"};
+        System.arraycopy(low, 0, NAMES, 0, low.length);
+        String[] env = {
+                "ADDRESS", "BALANCE", "ORIGIN", "CALLER", "CALLVALUE", "CALLDATALOAD", "CALLDATASIZE",
+                "CALLDATACOPY", "CODESIZE", "CODECOPY", "GASPRICE", "EXTCODESIZE", "EXTCODECOPY",
+                "RETURNDATASIZE", "RETURNDATACOPY", "EXTCODEHASH",
+                "BLOCKHASH", "COINBASE", "TIMESTAMP", "NUMBER", "DIFFICULTY", "GASLIMIT", "CHAINID",
+                "SELFBALANCE", "BASEFEE"};
+        System.arraycopy(env, 0, NAMES, 0x30, env.length);
+        String[] stack = {
+                "POP", "MLOAD", "MSTORE", "MSTORE8", "SLOAD", "SSTORE", "JUMP", "JUMPI", "PC", "MSIZE", "GAS",
+                "JUMPDEST", null, null, null, "PUSH0"};
+        System.arraycopy(stack, 0, NAMES, 0x50, stack.length);
+        for (int i = 1; i <= 32; i++) {
+            NAMES[0x5f + i] = "PUSH" + i;
+        }
+        for (int i = 1; i <= 16; i++) {
+            NAMES[0x7f + i] = "DUP" + i;
+            NAMES[0x8f + i] = "SWAP" + i;
+        }
+        for (int i = 0; i <= 4; i++) {
+            NAMES[0xa0 + i] = "LOG" + i;
+        }
+        String[] system = {
+                "CREATE", "CALL", "CALLCODE", "RETURN", "DELEGATECALL", "CREATE2", null, null, null, null,
+                "STATICCALL", null, null, "REVERT", "INVALID", "SELFDESTRUCT"};
+        System.arraycopy(system, 0, NAMES, 0xf0, system.length);
+
+        //static gas, London schedule: warm accesses, no memory expansion or copy words
+        Arrays.fill(GAS, 3);
+        int[][] tiers = {
+                {0, STOP, RETURN, REVERT, INVALID},
+                {1, JUMPDEST},
+                {2, 0x30, 0x32, 0x33, 0x34, 0x36, 0x38, 0x3a, 0x3d, 0x41, 0x42, 0x43, 0x44, 0x45, 0x46, 0x48,
+                        POP, 0x58, 0x59, 0x5a, PUSH0},
+                {5, 0x02, 0x04, 0x05, 0x06, 0x07, 0x0b, 0x47},
+                {8, 0x08, 0x09, JUMP},
+                {10, JUMPI, 0x0a},
+                {20, 0x40},
+                {30, 0x20},
+                {100, 0x31, 0x3b, 0x3c, 0x3f, 0x54, 0x55, 0xf1, 0xf2, 0xf4, 0xfa},
+                {375, 0xa0}, {750, 0xa1}, {1125, 0xa2}, {1500, 0xa3}, {1875, 0xa4},
+                {5000, SELFDESTRUCT},
+                {32000, 0xf0, 0xf5}};
+        for (int[] tier : tiers) {
+            for (int i = 1; i < tier.length; i++) {
+                GAS[tier[i]] = tier[0];
+            }
+        }
+
+        //{in, out, opcodes...}
+        int[][] effects = {
+                {0, 0, STOP, JUMPDEST, INVALID},
+                {2, 1, ADD, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x0a, 0x0b, 0x10, 0x11, 0x12, 0x13, EQ, AND, 0x17,
+                        0x18, 0x1a, 0x1b, SHR, 0x1d, 0x20},
+                {3, 1, 0x08, 0x09, 0xf0},
+                {1, 1, ISZERO, 0x19, 0x31, CALLDATALOAD, 0x3b, 0x3f, 0x40, 0x51, 0x54},
+                {0, 1, 0x30, 0x32, 0x33, 0x34, CALLDATASIZE, 0x38, 0x3a, RETURNDATASIZE, 0x41, 0x42, 0x43, 0x44, 0x45,
+                        0x46, 0x47, 0x48, 0x58, 0x59, 0x5a, PUSH0},
+                {3, 0, 0x37, CODECOPY, 0x3e},
+                {4, 0, 0x3c},
+                {1, 0, POP, JUMP, SELFDESTRUCT},
+                {2, 0, 0x52, 0x53, 0x55, JUMPI, RETURN, REVERT},
+                {4, 1, 0xf5},
+                {6, 1, 0xf4, 0xfa},
+                {7, 1, 0xf1, 0xf2}};
+        Arrays.fill(STACK_IN, -1);
+        Arrays.fill(STACK_OUT, -1);
+        for (int[] effect : effects) {
+            for (int i = 2; i < effect.length; i++) {
+                STACK_IN[effect[i]] = effect[0];
+                STACK_OUT[effect[i]] = effect[1];
+            }
+        }
+        for (int i = 1; i <= 32; i++) {
+            STACK_IN[PUSH0 + i] = 0;
+            STACK_OUT[PUSH0 + i] = 1;
+        }
+        for (int i = 1; i <= 16; i++) {
+            STACK_IN[DUP1 - 1 + i] = i;
+            STACK_OUT[DUP1 - 1 + i] = i + 1;
+            STACK_IN[SWAP1 - 1 + i] = i + 1;
+            STACK_OUT[SWAP1 - 1 + i] = i + 1;
+        }
+        for (int i = 0; i <= 4; i++) {
+            STACK_IN[0xa0 + i] = i + 2;
+            STACK_OUT[0xa0 + i] = 0;
+        }
+    }
+
+    /**
+     * Mnemonic of an opcode, "0x.." for undefined ones
+     */
+    public static String name(int opcode) {
+        String name = NAMES[opcode & 0xFF];
+        return name != null ? name : "0x" + HexCodec.byteString(opcode);
+    }
+
+    /**
+     * Stack items the opcode takes, -1 if it is undefined
+     */
+    public static int stackIn(int opcode) {
+        return STACK_IN[opcode & 0xFF];
+    }
+
+    /**
+     * Stack items the opcode pushes, -1 if it is undefined
+     */
+    public static int stackOut(int opcode) {
+        return STACK_OUT[opcode & 0xFF];
+    }
+
+    public static boolean isPush(int opcode) {
+        return opcode >= PUSH1 && opcode <= PUSH32;
+    }
+
+    /**
+     * Static gas of an opcode, the dynamic part (memory, cold access, copied words) is not included
+     */
+    public static int baseGas(int opcode) {
+        return GAS[opcode & 0xFF];
+    }
+
+    /**
+     * Number of immediate bytes following the opcode (PUSH1..PUSH32), 0 for everything else
+     */
+    public static int immediateSize(int opcode) {
+        return isPush(opcode) ? opcode - PUSH0 : 0;
+    }
+
+    /**
+     * Offset of the next instruction
+     */
+    public static int next(byte[] code, int pc) {
+        return pc + 1 + immediateSize(code[pc] & 0xFF);
+    }
+
+    /**
+     * Instructions after which execution does not fall through
+     */
+    public static boolean isTerminator(int opcode) {
+        return opcode == STOP || opcode == JUMP || opcode == RETURN || opcode == REVERT
+                || opcode == INVALID || opcode == SELFDESTRUCT;
+    }
+
+    /**
+     * Big-endian value of the PUSH immediate at pc, truncated immediates read as zero-padded.
+     * Only meaningful for immediates of at most 8 bytes.
+     */
+    public static long pushValue(byte[] code, int pc) {
+        int size = immediateSize(code[pc] & 0xFF);
+        long value = 0;
+        for (int i = 1; i <= size; i++) {
+            int b = pc + i < code.length ? code[pc + i] & 0xFF : 0;
+            value = (value << 8) | b;
+        }
+        return value;
+    }
+
+    /**
+     * Marks the offsets that start an instruction (as opposed to PUSH immediate bytes)
+     */
+    public static boolean[] instructionStarts(byte[] code, int from, int to) {
+        boolean[] starts = new boolean[code.length];
+        for (int pc = from; pc < to; pc = next(code, pc)) {
+            starts[pc] = true;
+        }
+        return starts;
+    }
+
+    //tested
+    public static void main(String[] args) {
+        byte[] code = HexCodec.decode("6080604052348015610010575b");
+        for (int pc = 0; pc < code.length; pc = next(code, pc)) {
+            int op = code[pc] & 0xFF;
+            System.out.println(pc + " " + name(op) + (isPush(op) ? " " + Long.toHexString(pushValue(code, pc)) : ""));
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package utils;
+
+import cn.hutool.json.JSONArray;
+import cn.hutool.json.JSONObject;
+import obfuscationmethods.ObfuscationPipeline;
+import obfuscationmethods.PassOptions;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Machine-readable report of the obfuscation of one contract, and the aggregate of a corpus of them.
+ * "contract" is the file name without .hex; run the differential test harness with
+ * --outdir .../&lt;contract&gt; and its summary.json joins the report on that name.
+ *
+ * Per contract: runtime size in and out, per pass bytes added, insertion sites, relocated jumps,
+ * estimated gas delta of a call (inserted code along its fall-through path minus removed and patched
+ * instructions, every site run once; for the dispatcher the mean change of the dispatch path over the
+ * selectors; for the peephole stage the gas it took off executed paths), attempts and problems; what
+ * the peephole stage saved; the validation status and the wall time of every stage in microseconds.
+ */
+public class RunReport {
+
+    private final String contract;
+    private final long seed;
+    private final Map<String, Long> stageMicros = new LinkedHashMap<>();
+    private byte[] runtime;
+    private ObfuscationPipeline.Result result;
+    private String error;
+
+    public RunReport(String contract, long seed) {
+        this.contract = contract.endsWith(".hex") ? contract.substring(0, contract.length() - 4) : contract;
+        this.seed = seed;
+    }
+
+    /**
+     * Wall time of a stage, stages are reported in the order they are first added
+     */
+    public void stage(String name, long nanos) {
+        stageMicros.merge(name, nanos / 1000, Long::sum);
+    }
+
+    /**
+     * The pipeline run over the runtime section, its passes are reported as stages too
+     */
+    public void pipeline(byte[] runtime, ObfuscationPipeline.Result result) {
+        this.runtime = runtime;
+        this.result = result;
+        for (ObfuscationPipeline.PassResult pass : result.passes) {
+            stage(pass.name, pass.nanos);
+        }
+    }
+
+    public void error(Exception e) {
+        this.error = e.toString();
+    }
+
+    public JSONObject toJson() {
+        JSONObject report = new JSONObject(true);
+        report.set("contract", contract);
+        report.set("createdAt", new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
+        report.set("seed", seed);
+        if (result != null) {
+            report.set("runtimeBytesIn", runtime.length);
+            report.set("runtimeBytesOut", result.code.length);
+            int sites = 0;
+            int relocated = 0;
+            long gas = 0;
+            JSONArray passes = new JSONArray();
+            List<String> problems = new ArrayList<>();
+            for (ObfuscationPipeline.PassResult pass : result.passes) {
+                JSONObject p = new JSONObject(true);
+                p.set("pass", pass.name);
+                p.set("applied", pass.applied);
+                p.set("attempts", pass.attempts);
+                p.set("bytesAdded", pass.sizeAfter - pass.sizeBefore);
+                p.set("sites", pass.sites);
+                p.set("relocatedJumps", pass.relocatedJumps);
+                p.set("gasDelta", pass.gasDelta);
+                if (!pass.applied) {
+                    p.set("problems", pass.problems);
+                    problems.add(pass.name + ": " + pass.problems);
+                }
+                passes.add(p);
+                sites += pass.sites.length;
+                relocated += pass.relocatedJumps;
+                gas += pass.gasDelta;
+            }
+            report.set("bytesAdded", result.code.length - runtime.length);
+            report.set("sites", sites);
+            report.set("relocatedJumps", relocated);
+            report.set("gasDelta", gas);
+            report.set("passes", passes);
+            if (result.peephole != null) {
+                JSONObject peephole = new JSONObject(true);
+                peephole.set("pushPops", result.peephole.pushPops);
+                peephole.set("deadInstructions", result.peephole.deadInstructions);
+                peephole.set("threadedJumps", result.peephole.threadedJumps);
+                peephole.set("narrowedPushes", result.peephole.narrowedPushes);
+                peephole.set("savedBytes", result.peephole.savedBytes);
+                peephole.set("gasSaved", result.peephole.gasSaved);
+                report.set("peephole", peephole);
+            }
+            //counted by the pipeline from the StackFlow runs its validation already did
+            int badIn = result.badJumpsIn;
+            int badOut = result.badJumpsOut;
+            JSONObject validation = new JSONObject(true);
+            validation.set("status", badOut > badIn ? "invalid" : problems.isEmpty() ? "ok" : "partial");
+            validation.set("badJumpsIn", badIn);
+            validation.set("badJumpsOut", badOut);
+            validation.set("skippedPasses", problems);
+            report.set("validation", validation);
+        } else {
+            JSONObject validation = new JSONObject(true);
+            validation.set("status", "failed");
+            validation.set("error", error);
+            report.set("validation", validation);
+        }
+        long total = 0;
+        for (long micros : stageMicros.values()) {
+            total += micros;
+        }
+        JSONObject stages = new JSONObject(true);
+        stageMicros.forEach(stages::set);
+        stages.set("total", total);
+        report.set("stageMicros", stages);
+        return report;
+    }
+
+    /**
+     * Corpus aggregate of contract reports: totals and percentiles of the size, gas and time metrics
+     */
+    public static JSONObject aggregate(List<JSONObject> reports) {
+        List<JSONObject> done = new ArrayList<>();
+        Map<String, Integer> status = new LinkedHashMap<>();
+        for (JSONObject report : reports) {
+            String s = report.getJSONObject("validation").getStr("status");
+            status.merge(s, 1, Integer::sum);
+            if (report.containsKey("runtimeBytesIn")) {
+                done.add(report);
+            }
+        }
+        JSONObject aggregate = new JSONObject(true);
+        aggregate.set("contracts", reports.size());
+        aggregate.set("validation", new JSONObject(status));
+        long in = 0;
+        long out = 0;
+        for (JSONObject report : done) {
+            in += report.getLong("runtimeBytesIn");
+            out += report.getLong("runtimeBytesOut");
+        }
+        aggregate.set("runtimeBytesIn", in);
+        aggregate.set("runtimeBytesOut", out);
+        aggregate.set("growthPercent", in == 0 ? 0 : 100.0 * (out - in) / in);
+        long saved = 0;
+        for (JSONObject report : done) {
+            JSONObject peephole = report.getJSONObject("peephole");
+            saved += peephole == null ? 0 : peephole.getLong("savedBytes");
+        }
+        aggregate.set("peepholeSavedBytes", saved);
+        for (String metric : new String[]{"runtimeBytesIn", "runtimeBytesOut", "bytesAdded", "sites", "relocatedJumps", "gasDelta"}) {
+            aggregate.set(metric + "Percentiles", CorpusProfiler.percentiles(values(done, null, metric)));
+        }
+
+        //per pass: applied count, total bytes and gas, percentiles of bytes added
+        Map<String, List<JSONObject>> byPass = new LinkedHashMap<>();
+        for (JSONObject report : done) {
+            for (Object p : report.getJSONArray("passes")) {
+                JSONObject pass = (JSONObject) p;
+                byPass.computeIfAbsent(pass.getStr("pass"), k -> new ArrayList<>()).add(pass);
+            }
+        }
+        JSONObject passes = new JSONObject(true);
+        for (Map.Entry<String, List<JSONObject>> entry : byPass.entrySet()) {
+            JSONObject pass = new JSONObject(true);
+            int applied = 0;
+            long bytes = 0;
+            long gas = 0;
+            for (JSONObject p : entry.getValue()) {
+                applied += p.getBool("applied") ? 1 : 0;
+                bytes += p.getLong("bytesAdded");
+                gas += p.getLong("gasDelta");
+            }
+            pass.set("applied", applied);
+            pass.set("skipped", entry.getValue().size() - applied);
+            pass.set("bytesAdded", bytes);
+            pass.set("gasDelta", gas);
+            pass.set("bytesAddedPercentiles", CorpusProfiler.percentiles(values(entry.getValue(), null, "bytesAdded")));
+            passes.set(entry.getKey(), pass);
+        }
+        aggregate.set("passes", passes);
+
+        JSONObject stages = new JSONObject(true);
+        for (JSONObject report : reports) {
+            for (String stage : report.getJSONObject("stageMicros").keySet()) {
+                if (!stages.containsKey(stage)) {
+                    stages.set(stage, CorpusProfiler.percentiles(values(reports, "stageMicros", stage)));
+                }
+            }
+        }
+        aggregate.set("stageMicrosPercentiles", stages);
+        return aggregate;
+    }
+
+    //a metric of every report that has it, in object if given
+    private static int[] values(List<JSONObject> reports, String object, String metric) {
+        List<Integer> values = new ArrayList<>();
+        for (JSONObject report : reports) {
+            JSONObject from = object == null ? report : report.getJSONObject(object);
+            if (from != null && from.containsKey(metric)) {
+                values.add(from.getInt(metric));
+            }
+        }
+        return values.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    //tested
+    public static void main(String[] args) {
+        byte[] runtime = HexCodec.decode("6080604052348015600f57600080fd5b5060043610603c5760003560e01c80632e64cec114604157"
+                + "80636057361d14604d575b600080fd5b60476057565b005b60556058565b005b5b5600");
+        List<JSONObject> reports = new ArrayList<>();
+        for (long seed = 1; seed <= 3; seed++) {
+            RunReport report = new RunReport("example.hex", seed);
+            ObfuscationPipeline.Result result = ObfuscationPipeline.standard(new PassOptions(), seed).run(runtime);
+            report.pipeline(runtime, result);
+            reports.add(report.toJson());
+        }
+        System.out.println(reports.get(0).toStringPretty());
+        System.out.println(aggregate(reports).toStringPretty());
+    }
+}
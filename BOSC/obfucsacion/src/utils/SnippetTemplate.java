@@ -0,0 +1,150 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Precompiled obfuscation snippet: the snippet bytes plus the relocation slots that are
+ * filled in when the snippet is stamped into an EditBuffer.
+ *
+ * Templates are written as hex with slot placeholders directly behind a PUSH opcode,
+ * the slot takes the whole immediate of that PUSH:
+ *   {rel:N}  self-relative jump target, snippet start + N in the obfuscated code
+ *   {abs}    absolute jump target, an offset of the original code (relocated)
+ *   {imm}    random immediate
+ * e.g. "61{rel:7}56 60{imm}01 5b"
+ */
+public class SnippetTemplate {
+
+    public enum SlotKind {SELF_RELATIVE, ABSOLUTE, RANDOM_IMMEDIATE}
+
+    /**
+     * One relocation slot, the immediate bytes at [offset, offset + width) of the snippet
+     */
+    public static final class Slot {
+        public final int offset;
+        public final int width;
+        public final SlotKind kind;
+        public final int addend;
+
+        Slot(int offset, int width, SlotKind kind, int addend) {
+            this.offset = offset;
+            this.width = width;
+            this.kind = kind;
+            this.addend = addend;
+        }
+    }
+
+    private final String name;
+    private final byte[] code;
+    private final Slot[] slots;
+
+    public SnippetTemplate(String name, byte[] code, Slot[] slots) {
+        this.name = name;
+        this.code = code;
+        this.slots = slots;
+    }
+
+    /**
+     * Compile a template pattern, see the class comment for the syntax
+     */
+    public static SnippetTemplate compile(String name, String pattern) {
+        byte[] buf = new byte[pattern.length()];
+        List<Slot> slots = new ArrayList<>();
+        int length = 0;
+        int i = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            if (c == ' ') {
+                i++;
+            } else if (c == '{') {
+                int close = pattern.indexOf('}', i);
+                if (close < 0) {
+                    throw new IllegalArgumentException(name + ": unclosed slot at " + i);
+                }
+                if (length == 0 || !Opcodes.isPush(buf[length - 1] & 0xFF)) {
+                    throw new IllegalArgumentException(name + ": slot at " + i + " does not follow a PUSH");
+                }
+                int width = Opcodes.immediateSize(buf[length - 1] & 0xFF);
+                String slot = pattern.substring(i + 1, close);
+                if (slot.startsWith("rel:")) {
+                    slots.add(new Slot(length, width, SlotKind.SELF_RELATIVE, Integer.parseInt(slot.substring(4))));
+                } else if (slot.equals("abs")) {
+                    slots.add(new Slot(length, width, SlotKind.ABSOLUTE, 0));
+                } else if (slot.equals("imm")) {
+                    slots.add(new Slot(length, width, SlotKind.RANDOM_IMMEDIATE, 0));
+                } else {
+                    throw new IllegalArgumentException(name + ": unknown slot {" + slot + "}");
+                }
+                length += width;
+                i = close + 1;
+            } else {
+                buf[length++] = HexCodec.decode(pattern.substring(i, i + 2))[0];
+                i += 2;
+            }
+        }
+        byte[] code = new byte[length];
+        System.arraycopy(buf, 0, code, 0, length);
+        for (Slot slot : slots) {
+            if (slot.kind == SlotKind.SELF_RELATIVE && (slot.addend >= length || code[slot.addend] != (byte) Opcodes.JUMPDEST)) {
+                throw new IllegalArgumentException(name + ": {rel:" + slot.addend + "} must point at a JUMPDEST of the snippet");
+            }
+        }
+        return new SnippetTemplate(name, code, slots.toArray(new Slot[0]));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Snippet bytes with zeroed slots, shared - do not modify
+     */
+    public byte[] code() {
+        return code;
+    }
+
+    public int length() {
+        return code.length;
+    }
+
+    /**
+     * Gas one pass through the snippet costs when execution falls into it: self-relative jumps are
+     * followed, JUMPIs are taken as not taken (obfuscation conditions are always false)
+     */
+    public int gasCost() {
+        int gas = 0;
+        int pc = 0;
+        int steps = 0;
+        Slot pushed = null;
+        while (pc < code.length && steps++ <= code.length) {
+            int op = code[pc] & 0xFF;
+            gas += Opcodes.baseGas(op);
+            if (op == Opcodes.JUMP && pushed != null && pushed.kind == SlotKind.SELF_RELATIVE) {
+                pc = pushed.addend;
+                pushed = null;
+                continue;
+            }
+            if (Opcodes.isTerminator(op)) {
+                break;
+            }
+            pushed = null;
+            for (Slot slot : slots) {
+                if (slot.offset == pc + 1) {
+                    pushed = slot;
+                }
+            }
+            pc = Opcodes.next(code, pc);
+        }
+        return gas;
+    }
+
+    public Slot[] slots() {
+        return slots;
+    }
+
+    @Override
+    public String toString() {
+        return name + ":" + HexCodec.encode(code);
+    }
+}
@@ -0,0 +1,79 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registry of obfuscation snippets.
+ * Names are "family.variant", a pass asks for its family and picks one of the variants,
+ * so new junk-code patterns only need a register call.
+ */
+public class SnippetTemplates {
+
+    //incomplete instruction: jump over an instruction that is never executed
+    public static final String INCOMPLETE = "incomplete";
+    //false branch: a JUMPI whose condition is always false
+    public static final String FALSE_BRANCH = "falsebranch";
+    //condition pushed in front of a JUMP that is turned into an always-true JUMPI
+    public static final String JUMPI_CONDITION = "jumpicondition";
+    //flower instructions: junk that changes nothing
+    public static final String FLOWER = "flower";
+
+    private static final Map<String, SnippetTemplate> TEMPLATES = new LinkedHashMap<>();
+
+    static {
+        //PUSH2 rel JUMP | PUSH1 imm ADD | JUMPDEST   (was "60"+"00"+"56"+"600201"+"5b")
+        register(SnippetTemplate.compile(INCOMPLETE + ".add", "61{rel:7}56 60{imm}01 5b"));
+        //PUSH1 0 PUSH2 abs JUMPI JUMPDEST   (was "60006000575b")
+        register(SnippetTemplate.compile(FALSE_BRANCH + ".zero", "6000 61{abs} 57 5b"));
+        //PUSH1 1 in front of the PUSH of the jump target   (was "6001")
+        register(SnippetTemplate.compile(JUMPI_CONDITION + ".push", "6001"));
+        //PUSH1 1 SWAP1 in front of a jump with a computed target, the target stays on top for JUMPI
+        register(SnippetTemplate.compile(JUMPI_CONDITION + ".swap", "6001 90"));
+        //PUSH2 rel JUMP JUMPDEST   (was "6006" + "565B")
+        register(SnippetTemplate.compile(FLOWER + ".jump", "61{rel:4}56 5b"));
+        //PUSH1 imm POP
+        register(SnippetTemplate.compile(FLOWER + ".pushpop", "60{imm}50"));
+    }
+
+    /**
+     * Add or replace a template
+     */
+    public static synchronized void register(SnippetTemplate template) {
+        TEMPLATES.put(template.getName(), template);
+    }
+
+    public static synchronized SnippetTemplate get(String name) {
+        SnippetTemplate template = TEMPLATES.get(name);
+        if (template == null) {
+            throw new IllegalArgumentException("no snippet template " + name);
+        }
+        return template;
+    }
+
+    /**
+     * All variants of a family, in registration order
+     */
+    public static synchronized List<SnippetTemplate> family(String family) {
+        List<SnippetTemplate> rs = new ArrayList<>();
+        for (SnippetTemplate template : TEMPLATES.values()) {
+            if (template.getName().startsWith(family + ".")) {
+                rs.add(template);
+            }
+        }
+        if (rs.isEmpty()) {
+            throw new IllegalArgumentException("no snippet templates in family " + family);
+        }
+        return Collections.unmodifiableList(rs);
+    }
+
+    //tested
+    public static void main(String[] args) {
+        for (SnippetTemplate template : TEMPLATES.values()) {
+            System.out.println(template);
+        }
+    }
+}
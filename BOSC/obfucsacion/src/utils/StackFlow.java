@@ -0,0 +1,352 @@
+package utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Which PUSH values reach the destination operand of a JUMP/JUMPI, found by running the stacks that
+ * reach every basic block over the control flow graph. Stacks are not joined: a function called from
+ * two places is run once with each caller's stack, so a return address deep in the caller's frame is
+ * still known when the caller returns. A block is run again only with a stack it has not seen.
+ * A stack item is the PUSH it comes from when the pushed value is a JUMPDEST, otherwise only whether
+ * it is a known zero, a known non-zero constant or unknown. DUP and SWAP move items, POP drops them,
+ * any other instruction uses them as data. Masking with a PUSH of 0xff bytes (function pointers of
+ * old compilers) keeps the item. A JUMPI whose condition is a constant only takes the branch it always
+ * takes. JUMPDESTs no jump was found to (internal function pointers kept in memory) are entered with
+ * an unknown stack afterwards; those whose offset a PUSH that is no jump target pushes are untracked
+ * JUMPDESTs: the pointer to them is not relocated, so they must not move.
+ *
+ * A jump target is a PUSH of any width whose value is a JUMPDEST, that reaches a jump destination (or
+ * feeds a JUMP/JUMPI directly) and is never used as data: return addresses, not constants that happen
+ * to equal a JUMPDEST.
+ * Values that go through memory or storage before being jumped to are not followed.
+ */
+public class StackFlow {
+
+    private static final int MAX_STACK = 1024;
+    //stacks run through the code before new blocks are entered with an unknown stack instead, keeps
+    //recursion and loops that grow the stack from running forever
+    private static final int MAX_STATES = 1 << 16;
+
+    private static final int UNKNOWN = -1;
+    private static final int ZERO = -2;
+    private static final int NONZERO = -3;
+    private static final int MASK = -4;
+
+    private final byte[] code;
+    private final ControlFlowGraph cfg;
+    private final boolean[] isJumpdest;
+    //per PUSH offset: the item it pushes
+    private final int[] items;
+    //per PUSH offset: value if it fits in an int, -1 otherwise
+    private final int[] values;
+    private final boolean[] reachesJump;
+    private final boolean[] data;
+    private final BitSet badJumpSites = new BitSet();
+    private final BitSet untracked = new BitSet();
+    //stacks every block was run with, bottom first
+    private final List<Set<Stack>> seen = new ArrayList<>();
+    private final Deque<Stack> pending = new ArrayDeque<>();
+    private int states;
+
+    private static final class Stack {
+        final int block;
+        final int[] items;
+        final int hash;
+
+        Stack(int block, int[] items) {
+            this.block = block;
+            this.items = items;
+            this.hash = 31 * block + Arrays.hashCode(items);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Stack && ((Stack) o).block == block && Arrays.equals(((Stack) o).items, items);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    public StackFlow(byte[] code) {
+        this(code, new ControlFlowGraph(code));
+    }
+
+    public StackFlow(byte[] code, ControlFlowGraph cfg) {
+        this.code = code;
+        this.cfg = cfg;
+        this.isJumpdest = new boolean[code.length];
+        this.items = new int[code.length];
+        this.values = new int[code.length];
+        this.reachesJump = new boolean[code.length];
+        this.data = new boolean[code.length];
+        Arrays.fill(values, -1);
+        for (int pc = 0; pc < code.length; pc = Opcodes.next(code, pc)) {
+            isJumpdest[pc] = (code[pc] & 0xFF) == Opcodes.JUMPDEST;
+        }
+        for (int pc = 0; pc < code.length; pc = Opcodes.next(code, pc)) {
+            int op = code[pc] & 0xFF;
+            if (Opcodes.isPush(op)) {
+                values[pc] = smallValue(code, pc);
+                items[pc] = values[pc] >= 0 && values[pc] < code.length && isJumpdest[values[pc]] ? pc
+                        : isMask(pc) ? MASK : allZero(pc) ? ZERO : NONZERO;
+                //a PUSH feeding a jump directly is a jump target even in code no stack reaches
+                int next = Opcodes.next(code, pc) < code.length ? code[Opcodes.next(code, pc)] & 0xFF : -1;
+                reachesJump[pc] = next == Opcodes.JUMP || next == Opcodes.JUMPI;
+            }
+        }
+        List<ControlFlowGraph.Block> blocks = cfg.blocks();
+        for (int b = 0; b < blocks.size(); b++) {
+            seen.add(new HashSet<>());
+        }
+        if (!blocks.isEmpty()) {
+            flow(0, new int[0]);
+        }
+        run();
+        //code only jumped to through values the analysis does not follow
+        BitSet unknownEntries = new BitSet();
+        for (ControlFlowGraph.Block block : blocks) {
+            if (seen.get(block.index).isEmpty() && isJumpdest[block.start]) {
+                unknownEntries.set(block.start);
+                flow(block.index, new int[0]);
+                run();
+            }
+        }
+        for (int pc = 0; pc < code.length && !unknownEntries.isEmpty(); pc = Opcodes.next(code, pc)) {
+            if (Opcodes.isPush(code[pc] & 0xFF) && values[pc] >= 0 && values[pc] < code.length
+                    && unknownEntries.get(values[pc]) && !isJumpTarget(pc)) {
+                untracked.set(values[pc]);
+            }
+        }
+    }
+
+    //value of the immediate at pc, -1 if it does not fit in an int or is cut off by the end of the code
+    private static int smallValue(byte[] code, int pc) {
+        int size = Opcodes.immediateSize(code[pc] & 0xFF);
+        if (pc + size >= code.length) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 1; i <= size; i++) {
+            value = (value << 8) | (code[pc + i] & 0xFF);
+            if (value > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        return (int) value;
+    }
+
+    private void run() {
+        while (!pending.isEmpty()) {
+            simulate(pending.poll());
+        }
+    }
+
+    //queue the block with the stack unless it already ran with it
+    private void flow(int block, int[] stack) {
+        if (states >= MAX_STATES) {
+            //out of budget: every JUMPDEST not reached yet is entered with an unknown stack instead
+            if (!seen.get(block).isEmpty()) {
+                return;
+            }
+            stack = new int[0];
+        }
+        Stack entry = new Stack(block, stack);
+        if (seen.get(block).add(entry)) {
+            states++;
+            pending.add(entry);
+        }
+    }
+
+    private void simulate(Stack entry) {
+        ControlFlowGraph.Block block = cfg.blocks().get(entry.block);
+        int[] stack = Arrays.copyOf(entry.items, entry.items.length + 16);
+        int size = entry.items.length;
+        for (int pc = block.start; pc < block.end; pc = Opcodes.next(code, pc)) {
+            int op = code[pc] & 0xFF;
+            int in = Opcodes.stackIn(op);
+            if (in < 0) {
+                //undefined opcode: execution stops here
+                return;
+            }
+            if (size < in) {
+                //items from before the analyzed entry are unknown
+                int[] padded = new int[Math.max(stack.length, in + 16)];
+                Arrays.fill(padded, 0, in - size, UNKNOWN);
+                System.arraycopy(stack, 0, padded, in - size, size);
+                stack = padded;
+                size = in;
+            }
+            if (stack.length < size + 2) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            if (Opcodes.isPush(op)) {
+                stack[size++] = items[pc];
+            } else if (op == Opcodes.PUSH0) {
+                stack[size++] = ZERO;
+            } else if (op >= Opcodes.DUP1 && op < Opcodes.DUP1 + 16) {
+                stack[size] = stack[size - in];
+                size++;
+            } else if (op >= Opcodes.SWAP1 && op < Opcodes.SWAP1 + 16) {
+                int top = stack[size - 1];
+                stack[size - 1] = stack[size - in];
+                stack[size - in] = top;
+            } else if (op == Opcodes.POP) {
+                size--;
+            } else if (op == Opcodes.JUMP) {
+                jump(pc, stack[--size], stack, size, true);
+                return;
+            } else if (op == Opcodes.JUMPI) {
+                int destination = stack[--size];
+                int condition = stack[--size];
+                mark(data, condition);
+                int constant = condition == ZERO ? 0 : condition == NONZERO || condition == MASK ? 1
+                        : condition >= 0 ? (allZero(condition) ? 0 : 1) : -1;
+                jump(pc, destination, stack, size, constant != 0);
+                if (constant == 1 || block.end >= code.length) {
+                    return;
+                }
+                flow(cfg.blockAt(block.end).index, Arrays.copyOf(stack, size));
+                return;
+            } else if (op == Opcodes.AND && (stack[size - 1] == MASK || stack[size - 2] == MASK)) {
+                int kept = stack[size - 1] == MASK ? stack[size - 2] : stack[size - 1];
+                size -= 2;
+                stack[size++] = kept;
+            } else {
+                for (int k = 0; k < in; k++) {
+                    mark(data, stack[--size]);
+                }
+                for (int k = 0; k < Opcodes.stackOut(op); k++) {
+                    stack[size++] = UNKNOWN;
+                }
+            }
+            if (size > MAX_STACK) {
+                //stack overflow: execution stops here
+                return;
+            }
+        }
+        if (!Opcodes.isTerminator(block.lastOpcode(code)) && block.end < code.length) {
+            flow(cfg.blockAt(block.end).index, Arrays.copyOf(stack, size));
+        }
+    }
+
+    //the destination of a branch never taken is still a jump target, only the stack does not flow there
+    private void jump(int pc, int destination, int[] stack, int size, boolean taken) {
+        if (destination >= 0) {
+            reachesJump[destination] = true;
+            if (taken) {
+                flow(cfg.blockAt(values[destination]).index, Arrays.copyOf(stack, size));
+            }
+        } else if (destination != UNKNOWN) {
+            badJumpSites.set(pc);
+        }
+    }
+
+    private static void mark(boolean[] flags, int item) {
+        if (item >= 0) {
+            flags[item] = true;
+        }
+    }
+
+    private boolean allZero(int pc) {
+        for (int i = 1; i <= Opcodes.immediateSize(code[pc] & 0xFF) && pc + i < code.length; i++) {
+            if (code[pc + i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //a PUSH of at least two 0xff bytes
+    private boolean isMask(int pc) {
+        int size = Opcodes.immediateSize(code[pc] & 0xFF);
+        if (size < 2 || pc + size >= code.length) {
+            return false;
+        }
+        for (int i = 1; i <= size; i++) {
+            if (code[pc + i] != (byte) 0xFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public byte[] code() {
+        return code;
+    }
+
+    public ControlFlowGraph cfg() {
+        return cfg;
+    }
+
+    /**
+     * Whether the PUSH at pc is a jump target: its value is a JUMPDEST, it reaches a jump destination
+     * and it is never used as data
+     */
+    public boolean isJumpTarget(int pc) {
+        return reachesJump[pc] && !data[pc] && values[pc] >= 0 && values[pc] < code.length && isJumpdest[values[pc]];
+    }
+
+    /**
+     * Value of the jump target PUSH at pc, -1 if it is not one
+     */
+    public int jumpTarget(int pc) {
+        return isJumpTarget(pc) ? values[pc] : -1;
+    }
+
+    /**
+     * Whether the value of the PUSH at pc may be the destination of a jump
+     */
+    public boolean reachesJump(int pc) {
+        return reachesJump[pc];
+    }
+
+    /**
+     * Whether the JUMPDEST at pc is only entered with an unknown stack and a PUSH that is no jump
+     * target pushes its offset, most likely an internal function pointer kept in memory
+     */
+    public boolean isUntrackedJumpdest(int pc) {
+        return untracked.get(pc);
+    }
+
+    /**
+     * Offset of the last untracked JUMPDEST, -1 if there is none: code up to it must not move
+     */
+    public int lastUntrackedJumpdest() {
+        return untracked.length() - 1;
+    }
+
+    /**
+     * JUMPs and JUMPIs a constant that is not a JUMPDEST may reach as destination
+     */
+    public int badJumps() {
+        return badJumpSites.cardinality();
+    }
+
+    //tested
+    public static void main(String[] args) {
+        //PUSH1 7 (return address) PUSH1 9 JUMP PUSH1 0 | JUMPDEST STOP | JUMPDEST JUMP
+        StackFlow call = new StackFlow(HexCodec.decode("600760095600005b005b56"));
+        System.out.println("return address 0: " + call.isJumpTarget(0) + ", call target 2: " + call.isJumpTarget(2));
+        Checks.check(call.isJumpTarget(0) && call.isJumpTarget(2) && !call.isJumpTarget(5), "call PUSHes are jump targets");
+        Checks.check(call.badJumps() == 0 && !call.isUntrackedJumpdest(7) && !call.isUntrackedJumpdest(9),
+                "call jumpdests are tracked");
+        //PUSH2 0x0006 PUSH1 2 EXP POP | JUMPDEST STOP: a constant that equals a JUMPDEST
+        StackFlow constant = new StackFlow(HexCodec.decode("61000660020a50" + "5b00"));
+        System.out.println("EXP operand 0: " + constant.isJumpTarget(0));
+        Checks.check(!constant.isJumpTarget(0), "EXP operand is not a jump target");
+        //PUSH1 0 CALLDATALOAD JUMP | JUMPDEST STOP | PUSH1 4 POP STOP: the JUMPDEST is only reached by an unknown jump
+        StackFlow unknown = new StackFlow(HexCodec.decode("600035565b00600450" + "00"));
+        System.out.println("untracked jumpdest 4: " + unknown.isUntrackedJumpdest(4) + ", last " + unknown.lastUntrackedJumpdest());
+        Checks.check(unknown.isUntrackedJumpdest(4) && unknown.lastUntrackedJumpdest() == 4, "JUMPDEST 4 is untracked");
+    }
+}
@@ -7,6 +7,8 @@ import java.util.Arrays;
  * Insert element, the following elements need to be back
  */
 public class insertElement {
+    private static final Log LOG = Log.get(insertElement.class);
+
     /**
      * Insert element method
      * @param original
@@ -18,10 +20,9 @@ public class insertElement {
         //bug: If index is -1, an array out-of-bounds exception will be reported
         int length = original.length;
         String destination[] = new String[length + 1];
-        System.out.println("index:"+index);
         System.arraycopy(original, 0, destination, 0, index);
         destination[index] = element;
-        System.out.println("length"+ (length-index));
+        LOG.debug("insert at {}, {} elements moved", index, length - index);
         System.arraycopy(original, index, destination, index+ 1, length - index);
         return destination;
     }